@@ -1,43 +1,244 @@
 package apkeep.checker;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import apkeep.core.APRegistry;
 import apkeep.core.Network;
 import apkeep.elements.ACLElement;
 import apkeep.elements.Element;
 import apkeep.elements.ForwardElement;
-import common.BDDACLWrapper;
+import apkeep.elements.NATElement;
+import apkeep.utils.IntHashSet;
 import common.PositionTuple;
 
 public class Checker {
 	
 	Network net;
-	Set<Loop> loops;
+	LoopRegistry loops;
+	
+	/*
+	 * ports are interned, so that the ports on the current path are a bitset
+	 */
+	private HashMap<String, HashMap<String, Integer>> port_ids;
+	private ArrayList<PositionTuple> id_port;
+	private BitSet on_path;
+	
+	/*
+	 * the AP sets forwarded at each depth of the traversal, as bitsets
+	 * of the ids given by the AP registries, reused across hops
+	 */
+	private APRegistry fwd_registry;
+	private APRegistry acl_registry;
+	private ArrayList<BitSet> fwd_buffers;
+	private ArrayList<BitSet> acl_buffers;
+	
+	/*
+	 * a hop of the current path, pointing to the hop before it,
+	 * so that the path is extended without being copied
+	 */
+	private static class Hop {
+		final int port;
+		final Hop previous;
+		// false if the port was already on the path
+		final boolean marked;
+		
+		Hop(int port, Hop previous, boolean marked) {
+			this.port = port;
+			this.previous = previous;
+			this.marked = marked;
+		}
+	}
+	
+	/*
+	 * the APs reaching a port in one property check, as the egress port
+	 * of a hop and as the ingress port of the next hop; the ACL APs are
+	 * only kept when ACLs are divided from forwarding
+	 */
+	private final static int EGRESS = 0;
+	private final static int INGRESS = 1;
+	
+	private static class PortReach {
+		boolean egress;
+		boolean ingress;
+		BitSet fwd_egress = new BitSet();
+		BitSet acl_egress = new BitSet();
+		BitSet fwd_ingress = new BitSet();
+		BitSet acl_ingress = new BitSet();
+		// the ingress ports linked to this port as an egress port
+		ArrayList<Integer> links = new ArrayList<>();
+		// the egress ports this port forwards to as an ingress port,
+		// with the port of the element they are forwarded by
+		ArrayList<Integer> forward_hops = new ArrayList<>();
+		ArrayList<String> forward_ports = new ArrayList<>();
+		
+		// Tarjan's algorithm
+		int index;
+		int lowlink;
+		boolean on_stack;
+		int stack_position;
+		int next_successor;
+		// -1 if the port is in no cycle
+		int component;
+		
+		// the APs already searched from the port in the current loop search
+		int search;
+		BitSet searched_fwd_egress = new BitSet();
+		BitSet searched_acl_egress = new BitSet();
+		BitSet searched_fwd_ingress = new BitSet();
+		BitSet searched_acl_ingress = new BitSet();
+		
+		void reset() {
+			egress = false;
+			ingress = false;
+			fwd_egress.clear();
+			acl_egress.clear();
+			fwd_ingress.clear();
+			acl_ingress.clear();
+			links.clear();
+			forward_hops.clear();
+			forward_ports.clear();
+			index = -1;
+			on_stack = false;
+			component = -1;
+			search = -1;
+		}
+		
+		int successorNum() {
+			return links.size() + forward_hops.size();
+		}
+		
+		int successor(int i) {
+			return i < links.size() ? links.get(i) : forward_hops.get(i - links.size());
+		}
+	}
+	
+	// kept across checks, and reset when first reached in a check
+	private ArrayList<PortReach> reaches;
+	private ArrayList<Integer> reached_ports;
+	private BitSet reached;
+	private ArrayDeque<Integer> worklist;
+	private BitSet queued;
+	private BitSet scratch;
+	
+	/*
+	 * the port the loops are looked for from, and its component
+	 */
+	private boolean division;
+	private int origin;
+	private boolean origin_egress;
+	private int origin_component;
+	// numbers the loop searches, one per origin port and role
+	private int search;
 	
 	public Checker(Network net) {
 		this.net = net;
-		loops = new HashSet<>();
+		loops = new LoopRegistry();
+		
+		port_ids = new HashMap<>();
+		id_port = new ArrayList<>();
+		on_path = new BitSet();
+		
+		fwd_buffers = new ArrayList<>();
+		acl_buffers = new ArrayList<>();
+		
+		reaches = new ArrayList<>();
+		reached_ports = new ArrayList<>();
+		reached = new BitSet();
+		worklist = new ArrayDeque<>();
+		queued = new BitSet();
+		scratch = new BitSet();
+		search = 0;
+	}
+	
+	public Collection<Loop> getLoops() {
+		return loops.getLoops();
+	}
+	
+	private int portId(String device, String port) {
+		HashMap<String, Integer> ids = port_ids.get(device);
+		if (ids == null) {
+			ids = new HashMap<>();
+			port_ids.put(device, ids);
+		}
+		Integer id = ids.get(port);
+		if (id == null) {
+			id = id_port.size();
+			ids.put(port, id);
+			id_port.add(new PositionTuple(device, port));
+		}
+		return id;
+	}
+	
+	private int portId(PositionTuple pt) {
+		return portId(pt.getDeviceName(), pt.getPortName());
+	}
+	
+	private Hop enter(Hop path, int port) {
+		boolean marked = !on_path.get(port);
+		if (marked) on_path.set(port);
+		return new Hop(port, path, marked);
+	}
+	
+	private void leave(Hop hop) {
+		if (hop.marked) on_path.clear(hop.port);
+	}
+	
+	/*
+	 * the loop of the path from the first hop of the looping port,
+	 * which is the one that marked the port, back to the looping port
+	 */
+	private Loop newLoop(APRegistry registry, Set<Integer> aps, Hop path, int cur_hop) {
+		int length = 1;
+		Hop first = path;
+		while (first.port != cur_hop || !first.marked) {
+			first = first.previous;
+			length++;
+		}
+		
+		int[] ports = new int[length + 1];
+		ports[length] = cur_hop;
+		for (Hop hop = path; hop != first.previous; hop = hop.previous) {
+			ports[--length] = hop.port;
+		}
+		List<PositionTuple> history = new ArrayList<>(ports.length);
+		for (int port : ports) {
+			history.add(id_port.get(port));
+		}
+		return new Loop(registry, aps, history, ports);
 	}
 	
-	public Set<Loop> getLoops() {
-		return loops;
+	private static BitSet getBuffer(ArrayList<BitSet> buffers, int depth) {
+		while (buffers.size() <= depth) {
+			buffers.add(new BitSet());
+		}
+		return buffers.get(depth);
 	}
 	
+	/**
+	 * the ports holding the APs of the port, with the ids of the APs they hold
+	 */
 	public ForwardingGraph constructFowardingGraph(PositionTuple pt1) {
-		Map<PositionTuple, Set<Integer>> port_aps = new HashMap<>();
+		Map<PositionTuple, BitSet> port_aps = new HashMap<>();
 		Map<String, Set<PositionTuple>> node_ports = new HashMap<>();
 		
 		Element e = getElement(pt1.getDeviceName());
 		Set<Integer> aps = e.getPortAPs(pt1.getPortName());
 		
 		if (aps == null) return null;
+		fwd_registry = net.getAPRegistry();
 			
 		for (int ap : aps) {
+			int id = fwd_registry.idOf(ap);
+			if (id < 0) continue;
 			Set<PositionTuple> pts = null;
 			try {
 				pts = net.getHoldPorts(ap);
@@ -45,8 +246,7 @@ public class Checker {
 				e1.printStackTrace();
 			}
 			for (PositionTuple pt: pts) {
-				port_aps.putIfAbsent(pt, new HashSet<>());
-				port_aps.get(pt).add(ap);
+				port_aps.computeIfAbsent(pt, k -> new BitSet()).set(id);
 				
 				node_ports.putIfAbsent(pt.getDeviceName(), new HashSet<>());
 				node_ports.get(pt.getDeviceName()).add(pt);
@@ -59,65 +259,79 @@ public class Checker {
 	public int checkProperty(ForwardingGraph g) {
 		loops.clear();
 		
+		fwd_registry = net.getAPRegistry();
 		for(PositionTuple pt : g.port_aps.keySet()) {
-			Set<Integer> aps = new HashSet<Integer>(g.port_aps.get(pt));
-			ArrayList<PositionTuple> history = new ArrayList<PositionTuple>();
-			traverseFowardingGraph(pt, aps, history, g);
+			traverseFowardingGraph(portId(pt), g.port_aps.get(pt), null, g, 0);
 		}
 		
 		return loops.size();
 	}
 	
-	private void traverseFowardingGraph(PositionTuple cur_hop, Set<Integer> fwd_aps, 
-			ArrayList<PositionTuple> history,
-			ForwardingGraph g) {
+	/*
+	 * the APs of the next hops are intersected into the buffer of the depth,
+	 * which the hops of the next depth only read
+	 */
+	private void traverseFowardingGraph(int cur_hop, BitSet fwd_aps, 
+			Hop path, ForwardingGraph g, int depth) {
 		if(fwd_aps.isEmpty()) return;
 		/*
 		 * check loops
 		 */
-		if(checkLoop(history, cur_hop, fwd_aps, null)) return;
-		history.add(cur_hop);
+		if(on_path.get(cur_hop)) {
+			loops.add(newLoop(fwd_registry, fwd_registry.toSet(fwd_aps), path, cur_hop));
+			return;
+		}
+		Hop hop = enter(path, cur_hop);
 		
 		/*
 		 * look up l1-topology for connected node
 		 */
-		if(net.getConnectedPorts(cur_hop) == null) return;
-		for(PositionTuple connected_pt : net.getConnectedPorts(cur_hop)) {
-			String next_node = connected_pt.getDeviceName();
-			if(!g.node_ports.containsKey(next_node)) continue;
-			for(PositionTuple next_hop : g.node_ports.get(next_node)) {
-				if(next_hop.equals(connected_pt)) continue;
-				Set<Integer> aps = new HashSet<>(g.port_aps.get(next_hop));
-				aps.retainAll(fwd_aps);
-				ArrayList<PositionTuple> new_history = new ArrayList<>(history);
-				new_history.add(connected_pt);
-				traverseFowardingGraph(next_hop, aps, new_history, g);
+		Set<PositionTuple> connected_pts = net.getConnectedPorts(id_port.get(cur_hop));
+		BitSet fwd_buffer = getBuffer(fwd_buffers, depth);
+		if(connected_pts != null) {
+			for(PositionTuple connected_pt : connected_pts) {
+				String next_node = connected_pt.getDeviceName();
+				if(!g.node_ports.containsKey(next_node)) continue;
+				Hop in_hop = enter(hop, portId(connected_pt));
+				for(PositionTuple next_hop : g.node_ports.get(next_node)) {
+					if(next_hop.equals(connected_pt)) continue;
+					fwd_buffer.clear();
+					fwd_buffer.or(g.port_aps.get(next_hop));
+					fwd_buffer.and(fwd_aps);
+					traverseFowardingGraph(portId(next_hop), fwd_buffer, in_hop, g, depth+1);
+				}
+				leave(in_hop);
 			}
 		}
+		leave(hop);
 	}
 
 	public void checkProperty(String element_name, Set<Integer> moved_aps) {
 		loops.clear();
+		fwd_registry = net.getAPRegistry();
+		division = false;
 		
 		Element e = net.getElement(element_name);
+		BitSet moved = fwd_registry.toBits(moved_aps);
 		for(String port : e.getPorts()) {
-			if (port.equals("default") || e.getPortAPs(port).isEmpty()) continue;
+			if (port.equals("default") || e.getPortAPBits(port).isEmpty()) continue;
 			
-			Set<Integer> aps = new HashSet<>(moved_aps);
-			aps.retainAll(e.getPortAPs(port));
+			BitSet aps = (BitSet) moved.clone();
+			aps.and(e.getPortAPBits(port));
 			
 			if(aps.isEmpty()) continue;
-			Set<String> ports = getPhysicalPorts(e,port);
-			for(String next_port : ports) {
-				PositionTuple next_hop = new PositionTuple(element_name, next_port);
-				ArrayList<PositionTuple> history = new ArrayList<>();
-				traversePPM(next_hop, aps, history);
+			for(String next_port : getPhysicalPorts(e,port)) {
+				reach(portId(element_name, next_port), EGRESS, aps, null);
 			}
 		}
+		detectLoops();
 	}
 	
 	public void checkPropertyDivision(String element_name, Set<Integer> moved_aps) {
 		loops.clear();
+		fwd_registry = net.getAPRegistry();
+		acl_registry = net.getACLAPRegistry();
+		division = true;
 		
 		boolean isACL = false;
 		if(net.getElement(element_name) instanceof ACLElement) {
@@ -128,116 +342,482 @@ public class Checker {
 		element_name = net.getForwardElement(element_name);
 		Element e = net.getElement(element_name);
 		
+		BitSet moved = isACL ? acl_registry.toBits(moved_aps) : fwd_registry.toBits(moved_aps);
+		// a forwarding update is not filtered by any ACL yet
+		BitSet all_acl_aps = isACL ? null : acl_registry.getLiveIds();
 		for(String port : e.getPorts()) {
-			if (port.equals("default") || e.getPortAPs(port).isEmpty()) continue;
+			if (port.equals("default") || e.getPortAPBits(port).isEmpty()) continue;
 			
-			Set<Integer> fwd_aps = new HashSet<>();
-			Set<Integer> acl_aps = new HashSet<>();
+			BitSet fwd_aps = null;
+			BitSet acl_aps = null;
 			if(isACL) {
-				fwd_aps.addAll(e.getPortAPs(port));
-				acl_aps.addAll(moved_aps);
+				fwd_aps = e.getPortAPBits(port);
+				acl_aps = moved;
 			}
 			else {
-				fwd_aps.addAll(moved_aps);
-				fwd_aps.retainAll(e.getPortAPs(port));
-				acl_aps.add(BDDACLWrapper.BDDTrue);
+				fwd_aps = (BitSet) moved.clone();
+				fwd_aps.and(e.getPortAPBits(port));
+				acl_aps = all_acl_aps;
 			}
 			
 			if(fwd_aps.isEmpty() || acl_aps.isEmpty()) continue;
-			Set<String> ports = getPhysicalPorts(e,port);
-			for(String next_port : ports) {
-				PositionTuple next_hop = new PositionTuple(element_name, next_port);
-				ArrayList<PositionTuple> history = new ArrayList<>();
-				traversePPMDivision(next_hop, fwd_aps, acl_aps, history);
+			for(String next_port : getPhysicalPorts(e,port)) {
+				reach(portId(element_name, next_port), EGRESS, fwd_aps, acl_aps);
 			}
 		}
+		detectLoops();
 	}
-
-	private void traversePPM(PositionTuple cur_hop, Set<Integer> fwd_aps, 
-			List<PositionTuple> history) {
+	
+	/*
+	 * 1. propagate the moved APs to every port they reach,
+	 * 2. find the strongly connected components of the reached ports,
+	 * 3. look for loops only inside the components with a cycle, 
+	 *    one witness loop per port and group of APs looping through it
+	 */
+	private void detectLoops() {
+		propagate();
+		int components = findCyclicComponents();
 		
-		if(fwd_aps.isEmpty()) return;
+		for (int port : reached_ports) {
+			if (components == 0) break;
+			PortReach r = reaches.get(port);
+			if (r.component < 0) continue;
+			origin = port;
+			origin_component = r.component;
+			BitSet acl_egress = division ? r.acl_egress : null;
+			BitSet acl_ingress = division ? r.acl_ingress : null;
+			if (r.egress) {
+				origin_egress = true;
+				search++;
+				traverseEgress(port, r.fwd_egress, acl_egress, null, 0);
+			}
+			if (r.ingress) {
+				origin_egress = false;
+				search++;
+				traverseIngress(port, r.fwd_ingress, acl_ingress, null, 0);
+			}
+		}
+		
+		reached_ports.clear();
+		reached.clear();
+	}
+	
+	private PortReach getReach(int port) {
+		while (reaches.size() <= port) {
+			reaches.add(null);
+		}
+		PortReach r = reaches.get(port);
+		if (r == null) {
+			r = new PortReach();
+			reaches.set(port, r);
+		}
+		if (!reached.get(port)) {
+			reached.set(port);
+			reached_ports.add(port);
+			r.reset();
+		}
+		return r;
+	}
+	
+	/*
+	 * add the APs to the ones reaching the port in the role, 
+	 * and queue the port again if they were not all there
+	 */
+	private void reach(int port, int role, BitSet fwd_aps, BitSet acl_aps) {
+		PortReach r = getReach(port);
+		boolean grown;
+		if (role == EGRESS) {
+			r.egress = true;
+			grown = addAll(r.fwd_egress, fwd_aps);
+			if (acl_aps != null) grown |= addAll(r.acl_egress, acl_aps);
+		}
+		else {
+			r.ingress = true;
+			grown = addAll(r.fwd_ingress, fwd_aps);
+			if (acl_aps != null) grown |= addAll(r.acl_ingress, acl_aps);
+		}
+		
+		int item = port * 2 + role;
+		if (grown && !queued.get(item)) {
+			queued.set(item);
+			worklist.add(item);
+		}
+	}
+	
+	/**
+	 * @return false if all the APs were already in the set
+	 */
+	private boolean addAll(BitSet aps, BitSet more_aps) {
+		scratch.clear();
+		scratch.or(more_aps);
+		scratch.andNot(aps);
+		if (scratch.isEmpty()) return false;
+		aps.or(scratch);
+		return true;
+	}
+	
+	private void propagate() {
+		while (!worklist.isEmpty()) {
+			int item = worklist.poll();
+			queued.clear(item);
+			int port = item / 2;
+			if (item % 2 == EGRESS) {
+				propagateEgress(port, reaches.get(port));
+			}
+			else {
+				propagateIngress(port, reaches.get(port));
+			}
+		}
+	}
+	
+	/*
+	 * look up l1-topology for connected node
+	 */
+	private void propagateEgress(int port, PortReach r) {
+		Set<PositionTuple> connected_pts = net.getConnectedPorts(id_port.get(port));
+		if (connected_pts == null) return;
+		r.links.clear();
+		for (PositionTuple connected_pt : connected_pts) {
+			int next_hop = portId(connected_pt);
+			r.links.add(next_hop);
+			reach(next_hop, INGRESS, r.fwd_egress, division ? r.acl_egress : null);
+		}
+	}
+	
+	private void propagateIngress(int port, PortReach r) {
+		PositionTuple in_pt = id_port.get(port);
+		Element e = getElement(in_pt.getDeviceName());
+		BitSet fwd_buffer = getBuffer(fwd_buffers, 0);
+		BitSet acl_buffer = getBuffer(acl_buffers, 0);
+		r.forward_hops.clear();
+		r.forward_ports.clear();
+		for (String out_port : e.getPorts()) {
+			if (out_port.equals(in_pt.getPortName())) continue;
+			BitSet fwd_aps = r.fwd_ingress;
+			BitSet acl_aps = division ? r.acl_ingress : null;
+			if (acl_aps != null && e instanceof ACLElement) {
+				acl_aps = forwardAPs(e, out_port, acl_aps, acl_buffer);
+			}
+			else {
+				fwd_aps = forwardAPs(e, out_port, fwd_aps, fwd_buffer);
+			}
+			if (fwd_aps.isEmpty() || acl_aps != null && acl_aps.isEmpty()) continue;
+			for (String next_port : getPhysicalPorts(e, out_port)) {
+				if (next_port.equals(in_pt.getPortName())) continue;
+				// denied packets go nowhere
+				if (acl_aps != null && next_port.equals("deny")) continue;
+				int next_hop = portId(in_pt.getDeviceName(), next_port);
+				r.forward_hops.add(next_hop);
+				r.forward_ports.add(out_port);
+				reach(next_hop, EGRESS, fwd_aps, acl_aps);
+			}
+		}
+	}
+	
+	/*
+	 * Tarjan's algorithm with an explicit call stack, 
+	 * numbering only the components of more than one port
+	 */
+	private int findCyclicComponents() {
+		int index = 0;
+		int components = 0;
+		ArrayList<Integer> stack = new ArrayList<>();
+		ArrayList<Integer> calls = new ArrayList<>();
+		
+		for (int root : reached_ports) {
+			if (reaches.get(root).index >= 0) continue;
+			index = open(root, index, stack, calls);
+			
+			while (!calls.isEmpty()) {
+				int port = calls.get(calls.size() - 1);
+				PortReach r = reaches.get(port);
+				if (r.next_successor < r.successorNum()) {
+					int next_hop = r.successor(r.next_successor++);
+					PortReach next = reaches.get(next_hop);
+					if (next.index < 0) {
+						index = open(next_hop, index, stack, calls);
+					}
+					else if (next.on_stack) {
+						r.lowlink = Math.min(r.lowlink, next.index);
+					}
+					continue;
+				}
+				
+				calls.remove(calls.size() - 1);
+				if (!calls.isEmpty()) {
+					PortReach caller = reaches.get(calls.get(calls.size() - 1));
+					caller.lowlink = Math.min(caller.lowlink, r.lowlink);
+				}
+				if (r.lowlink != r.index) continue;
+				
+				int top = r.stack_position;
+				List<Integer> members = stack.subList(top, stack.size());
+				for (int member : members) {
+					PortReach m = reaches.get(member);
+					m.on_stack = false;
+					if (members.size() > 1) m.component = components;
+				}
+				if (members.size() > 1) components++;
+				members.clear();
+			}
+		}
+		return components;
+	}
+	
+	private int open(int port, int index, ArrayList<Integer> stack, ArrayList<Integer> calls) {
+		PortReach r = reaches.get(port);
+		r.index = index;
+		r.lowlink = index;
+		r.on_stack = true;
+		r.stack_position = stack.size();
+		r.next_successor = 0;
+		stack.add(port);
+		calls.add(port);
+		return index + 1;
+	}
+	
+	private boolean inComponent(int port) {
+		return reached.get(port) && reaches.get(port).component == origin_component;
+	}
+	
+	/**
+	 * @return false if all the APs were searched from the port in the role before,
+	 * 		   in which case any loop back to the origin port they take is known
+	 */
+	private boolean addSearched(PortReach r, int role, BitSet fwd_aps, BitSet acl_aps) {
+		if (r.search != search) {
+			r.search = search;
+			r.searched_fwd_egress.clear();
+			r.searched_acl_egress.clear();
+			r.searched_fwd_ingress.clear();
+			r.searched_acl_ingress.clear();
+		}
+		boolean grown;
+		if (role == EGRESS) {
+			grown = addAll(r.searched_fwd_egress, fwd_aps);
+			if (acl_aps != null) grown |= addAll(r.searched_acl_egress, acl_aps);
+		}
+		else {
+			grown = addAll(r.searched_fwd_ingress, fwd_aps);
+			if (acl_aps != null) grown |= addAll(r.searched_acl_ingress, acl_aps);
+		}
+		return grown;
+	}
+	
+	/*
+	 * the paths back to the origin port, inside its component;
+	 * a loop closed at another port is found from that port, and
+	 * a loop entered at an egress port is found from its smallest egress port.
+	 * A port is only searched again with APs it was not searched with,
+	 * so each AP visits a port at most once per search, and the loops found
+	 * are one witness per group of APs instead of every simple cycle
+	 */
+	private void traverseEgress(int cur_hop, BitSet fwd_aps, BitSet acl_aps, Hop path, int depth) {
 		/*
 		 * check loops
 		 */
-		if(checkLoop(history, cur_hop, fwd_aps, null)) return;
-		history.add(cur_hop);
+		if(on_path.get(cur_hop)) {
+			if(cur_hop == origin) recordLoop(path, cur_hop, fwd_aps, acl_aps);
+			return;
+		}
+		if(origin_egress && cur_hop < origin) return;
+		if(!addSearched(reaches.get(cur_hop), EGRESS, fwd_aps, acl_aps)) return;
+		
+		/*
+		 * follow the links found by the propagation
+		 */
+		Hop hop = enter(path, cur_hop);
+		for(int next_hop : reaches.get(cur_hop).links) {
+			if(!inComponent(next_hop)) continue;
+			traverseIngress(next_hop, fwd_aps, acl_aps, hop, depth);
+		}
+		leave(hop);
+	}
+	
+	private void traverseIngress(int in_port, BitSet fwd_aps, BitSet acl_aps, Hop path, int depth) {
+		PortReach r = reaches.get(in_port);
+		if(!addSearched(r, INGRESS, fwd_aps, acl_aps)) return;
+		Element e = getElement(id_port.get(in_port).getDeviceName());
+		BitSet fwd_buffer = getBuffer(fwd_buffers, depth);
+		BitSet acl_buffer = getBuffer(acl_buffers, depth);
 		
 		/*
-		 * look up l1-topology for connected node
+		 * follow the forwarding found by the propagation, 
+		 * the hops through one port of the element come one after another
 		 */
-		if(net.getConnectedPorts(cur_hop) == null) return;
-		for(PositionTuple connected_pt : net.getConnectedPorts(cur_hop)) {
-			String next_node = connected_pt.getDeviceName();
-			Element e = getElement(next_node);
-			for(String port : e.getPorts()) {
-				if(port.equals(connected_pt.getPortName())) continue;
-				Set<Integer> aps = e.forwardAPs(port, fwd_aps);
-				Set<String> ports = getPhysicalPorts(e,port);
-				for(String next_port : ports) {
-					if(next_port.equals(connected_pt.getPortName())) continue;
-					PositionTuple next_hop = new PositionTuple(next_node, next_port);
-					ArrayList<PositionTuple> new_history = new ArrayList<>(history);
-					new_history.add(connected_pt);
-					traversePPM(next_hop, aps, new_history);
+		Hop in_hop = enter(path, in_port);
+		String last_port = null;
+		BitSet filtered_fwd_aps = fwd_aps;
+		BitSet filtered_acl_aps = acl_aps;
+		for(int i = 0; i < r.forward_hops.size(); i++) {
+			int next_hop = r.forward_hops.get(i);
+			if(!inComponent(next_hop)) continue;
+			String port = r.forward_ports.get(i);
+			if(!port.equals(last_port)) {
+				last_port = port;
+				filtered_fwd_aps = fwd_aps;
+				filtered_acl_aps = acl_aps;
+				if(acl_aps != null && e instanceof ACLElement) {
+					filtered_acl_aps = forwardAPs(e, port, acl_aps, acl_buffer);
+				}
+				else {
+					filtered_fwd_aps = forwardAPs(e, port, fwd_aps, fwd_buffer);
 				}
 			}
+			if(filtered_fwd_aps.isEmpty() || acl_aps != null && filtered_acl_aps.isEmpty()) continue;
+			traverseEgress(next_hop, filtered_fwd_aps, filtered_acl_aps, in_hop, depth+1);
 		}
+		leave(in_hop);
 	}
 	
-	private void traversePPMDivision(PositionTuple cur_hop, 
-			Set<Integer> fwd_aps, Set<Integer> acl_aps,
-			List<PositionTuple> history) {
-		if(fwd_aps.isEmpty() || acl_aps.isEmpty()) return;
-		if(cur_hop.getPortName().equals("deny")) return;
+	/*
+	 * check the moved APs one at a time, reading the port each element 
+	 * forwards an AP to from the port vector of the AP instead of 
+	 * intersecting port AP sets; an AP forwarded to one port per element 
+	 * follows a single path, which only branches at VLAN ports, 
+	 * multiple links and NAT rewrites
+	 */
+	public void checkPropertyPerAP(String element_name, Set<Integer> moved_aps) {
+		loops.clear();
+		fwd_registry = net.getAPRegistry();
 		
+		Element e = net.getElement(element_name);
+		for(int ap : moved_aps) {
+			if(fwd_registry.idOf(ap) < 0) continue;
+			String port = e.getAPPort(ap);
+			for(int next_ap : rewriteAP(e, ap)) {
+				for(String next_port : getPhysicalPorts(e,port)) {
+					walkEgress(portId(element_name, next_port), next_ap, null);
+				}
+			}
+		}
+	}
+	
+	private void walkEgress(int cur_hop, int ap, Hop path) {
 		/*
 		 * check loops
 		 */
-		if(checkLoop(history, cur_hop, fwd_aps, acl_aps)) return;
-		history.add(cur_hop);
+		if(on_path.get(cur_hop)) {
+			IntHashSet ap_set = new IntHashSet();
+			ap_set.add(ap);
+			loops.add(newLoop(fwd_registry, ap_set, path, cur_hop));
+			return;
+		}
 		
 		/*
 		 * look up l1-topology for connected node
 		 */
-		if(net.getConnectedPorts(cur_hop) == null) return;
-		for(PositionTuple connected_pt : net.getConnectedPorts(cur_hop)) {
-			String next_node = connected_pt.getDeviceName();
-			Element e = getElement(next_node);
-			Set<Integer> filtered_fwd_aps = new HashSet<>(fwd_aps);
-			Set<Integer> filtered_acl_aps = new HashSet<>(acl_aps);
+		Set<PositionTuple> connected_pts = net.getConnectedPorts(id_port.get(cur_hop));
+		if(connected_pts == null) return;
+		Hop hop = enter(path, cur_hop);
+		for(PositionTuple connected_pt : connected_pts) {
+			walkIngress(portId(connected_pt), ap, hop);
+		}
+		leave(hop);
+	}
+	
+	private void walkIngress(int in_port, int ap, Hop path) {
+		PositionTuple in_pt = id_port.get(in_port);
+		Element e = getElement(in_pt.getDeviceName());
+		String port = e.getAPPort(ap);
+		if(port.equals(in_pt.getPortName())) return;
+		
+		Hop in_hop = enter(path, in_port);
+		for(int next_ap : rewriteAP(e, ap)) {
+			for(String next_port : getPhysicalPorts(e,port)) {
+				if(next_port.equals(in_pt.getPortName())) continue;
+				walkEgress(portId(in_pt.getDeviceName(), next_port), next_ap, in_hop);
+			}
+		}
+		leave(in_hop);
+	}
+	
+	/*
+	 * the APs a NAT element rewrites the AP to, the AP itself otherwise
+	 */
+	private Set<Integer> rewriteAP(Element e, int ap) {
+		if(e instanceof NATElement) {
+			IntHashSet rewrited_aps = ((NATElement) e).getRewrite_table().get(ap);
+			if(rewrited_aps != null) return rewrited_aps;
+		}
+		return Collections.singleton(ap);
+	}
+	
+	private static BitSet forwardAPs(Element e, String port, BitSet aps, BitSet buffer) {
+		buffer.clear();
+		buffer.or(aps);
+		e.forwardAPs(port, buffer);
+		return buffer;
+	}
+	
+	private void recordLoop(Hop path, int cur_hop, BitSet fwd_aps, BitSet acl_aps) {
+		Set<Integer> fwd_ap_set = fwd_registry.toSet(fwd_aps);
+		if(acl_aps != null) {
+			if(!Element.hasOverlap(fwd_ap_set, acl_registry.toSet(acl_aps))) return;
+		}
+		loops.add(newLoop(fwd_registry, fwd_ap_set, path, cur_hop));
+	}
+	
+	/**
+	 * follow a loop found before through the updated element once around 
+	 * from all the live APs, and keep the APs still forwarded along every hop 
+	 * of it as its APs; the loop is left as it is if none of its APs moved,
+	 * and none of them was split or merged since
+	 * @return false if no AP is forwarded around the loop any more
+	 */
+	public boolean recheckLoop(Loop loop, String element_name, Set<Integer> moved_aps) {
+		fwd_registry = net.getAPRegistry();
+		acl_registry = net.getACLAPRegistry();
+		if(!isAffected(loop, element_name, moved_aps)) return true;
+		
+		BitSet fwd_aps = fwd_registry.getLiveIds();
+		BitSet acl_aps = acl_registry == null ? null : acl_registry.getLiveIds();
+		BitSet fwd_buffer = getBuffer(fwd_buffers, 0);
+		BitSet acl_buffer = getBuffer(acl_buffers, 0);
+		
+		/*
+		 * the loop is closed at an egress port, and the ports before it 
+		 * alternate between ingress and egress ports
+		 */
+		int last = loop.path.size() - 1;
+		for(int i = (last + 1) % 2; i < last; i += 2) {
+			PositionTuple in_pt = loop.path.get(i);
+			String next_port = loop.path.get(i+1).getPortName();
+			Element e = getElement(in_pt.getDeviceName());
+			boolean acl_hop = acl_aps != null && e instanceof ACLElement;
+			BitSet forwarded = new BitSet();
 			for(String port : e.getPorts()) {
-				if(port.equals(connected_pt.getPortName())) continue;
-				if(e instanceof ACLElement) {
-					filtered_acl_aps = e.forwardAPs(port, acl_aps);
+				if(port.equals(in_pt.getPortName())) continue;
+				if(!getPhysicalPorts(e,port).contains(next_port)) continue;
+				if(acl_hop) {
+					forwarded.or(forwardAPs(e, port, acl_aps, acl_buffer));
 				}
 				else {
-					filtered_fwd_aps = e.forwardAPs(port, fwd_aps);
-				}
-				Set<String> ports = getPhysicalPorts(e,port);
-				for(String next_port : ports) {
-					if(next_port.equals(connected_pt.getPortName())) continue;
-					PositionTuple next_hop = new PositionTuple(next_node, next_port);
-					ArrayList<PositionTuple> new_history = new ArrayList<>(history);
-					new_history.add(connected_pt);
-					traversePPMDivision(next_hop, filtered_fwd_aps, filtered_acl_aps, new_history);
+					forwarded.or(forwardAPs(e, port, fwd_aps, fwd_buffer));
 				}
 			}
+			if(acl_hop) acl_aps = forwarded;
+			else fwd_aps = forwarded;
+			if(forwarded.isEmpty()) return false;
+		}
+		
+		Set<Integer> fwd_ap_set = fwd_registry.toSet(fwd_aps);
+		if(acl_aps != null) {
+			if(!Element.hasOverlap(fwd_ap_set, acl_registry.toSet(acl_aps))) return false;
 		}
+		loop.setAPs(fwd_ap_set);
+		return true;
 	}
-
-	private boolean checkLoop(List<PositionTuple> history, PositionTuple cur_hop,
-			Set<Integer> fwd_aps, Set<Integer> acl_aps) {
-		if(history.contains(cur_hop)) {
-			if(acl_aps != null) {
-				if(!Element.hasOverlap(fwd_aps, acl_aps)) {
-					return true;
-				}
-			}
-			history.add(cur_hop);
-			Loop loop = new Loop(fwd_aps, history, cur_hop);
-			loops.add(loop);
-			return true;
+	
+	/*
+	 * the APs moved by an ACL element are ACL APs when ACLs are divided
+	 * from forwarding, and cannot be told from the APs of the loop
+	 */
+	private boolean isAffected(Loop loop, String element_name, Set<Integer> moved_aps) {
+		if(acl_registry != null && getElement(element_name) instanceof ACLElement) return true;
+		if(loop.hasStaleAPs()) return true;
+		for(int ap : loop.getAPs()) {
+			if(moved_aps.contains(ap)) return true;
 		}
 		return false;
 	}
@@ -253,8 +833,6 @@ public class Checker {
 				return ((ForwardElement) e).getVlanPorts(port);			
 			}
 		}
-		Set<String> ports = new HashSet<>();
-		ports.add(port);
-		return ports;
+		return Collections.singleton(port);
 	}
 }
@@ -1,5 +1,6 @@
 package apkeep.checker;
 
+import java.util.BitSet;
 import java.util.Map;
 import java.util.Set;
 
@@ -7,10 +8,11 @@ import common.PositionTuple;
 
 public class ForwardingGraph {
 
-	Map<PositionTuple, Set<Integer>> port_aps;
+	// the registry ids of the APs each port holds
+	Map<PositionTuple, BitSet> port_aps;
 	Map<String, Set<PositionTuple>> node_ports;
 
-	public ForwardingGraph(Map<PositionTuple, Set<Integer>> port_aps, 
+	public ForwardingGraph(Map<PositionTuple, BitSet> port_aps, 
 			Map<String, Set<PositionTuple>> node_ports) {
 		
 		this.port_aps = port_aps;
@@ -1,31 +1,113 @@
 package apkeep.checker;
 
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 
 import apkeep.core.APKeeper;
+import apkeep.core.APRegistry;
 import common.PositionTuple;
 
+/**
+ * A forwarding loop and the APs forwarded around it.
+ * Loops are equal if their ports form the same cycle, whatever port
+ * the cycle was found from, and are hashed by the cycle rotated
+ * to start at its smallest rotation, so that no rotation is tried on lookup.
+ * The APs are kept with their registry stamps, since the BDD node of an AP
+ * split, merged or removed since may be reused by an unrelated AP.
+ */
 public class Loop {
-	Set<Integer> apset;
+	// the APs forwarded around the loop and their stamps, -1 if unknown
+	private HashMap<Integer, Long> aps;
+	private final APRegistry registry;
 	List<PositionTuple> path;
+	// the cycle of the ports at its smallest rotation, without the closing port
+	private final int[] cycle;
+	private final int hash;
 	
-	public Loop(Set<Integer> rewrited_aps, List<PositionTuple> history, PositionTuple cur_hop)
+	/**
+	 * @param registry - the registry of the APs, null if they are not registered
+	 * @param path - the ports of the loop, starting and ending at the same port
+	 * @param ports - the ports of the path, interned by the checker
+	 */
+	Loop(APRegistry registry, Set<Integer> rewrited_aps, List<PositionTuple> path, int[] ports)
 	{
-		apset = rewrited_aps;
-		path = history;
-		while(path.size() > 0) {
-			if(!path.get(0).equals(cur_hop)) {
-				path.remove(0);
+		this.registry = registry;
+		aps = new HashMap<>();
+		putAPs(rewrited_aps);
+		this.path = path;
+		cycle = minimalRotation(ports, ports.length - 1);
+		hash = Arrays.hashCode(cycle);
+	}
+	
+	static int[] minimalRotation(int[] ports, int length) {
+		int best = 0;
+		for (int start = 1; start < length; start++) {
+			for (int i = 0; i < length; i++) {
+				int a = ports[(start + i) % length];
+				int b = ports[(best + i) % length];
+				if (a == b) continue;
+				if (a < b) best = start;
+				break;
 			}
-			else break;
 		}
+		int[] rotation = new int[length];
+		for (int i = 0; i < length; i++) {
+			rotation[i] = ports[(best + i) % length];
+		}
+		return rotation;
+	}
+	
+	public Set<Integer> getAPs() {
+		return aps.keySet();
+	}
+	
+	private void putAPs(Set<Integer> rewrited_aps) {
+		for (int ap : rewrited_aps) {
+			aps.put(ap, registry == null ? -1 : registry.stampOf(ap));
+		}
+	}
+	
+	void setAPs(Set<Integer> rewrited_aps) {
+		aps.clear();
+		putAPs(rewrited_aps);
+	}
+	
+	/**
+	 * take the APs of the same loop found again after it was removed
+	 */
+	void setAPs(Loop another) {
+		aps.clear();
+		aps.putAll(another.aps);
+	}
+	
+	/**
+	 * add the APs of the same loop found again, dropping the stale APs first
+	 */
+	void addAPs(Loop another) {
+		if (registry != null) {
+			aps.values().removeIf(stamp -> !registry.isCurrent(stamp));
+		}
+		aps.putAll(another.aps);
+	}
+	
+	/**
+	 * @return true if an AP of the loop was split, merged or removed since
+	 * it was stamped, or is not registered at all
+	 */
+	boolean hasStaleAPs() {
+		if (registry == null) return true;
+		for (long stamp : aps.values()) {
+			if (!registry.isCurrent(stamp)) return true;
+		}
+		return false;
 	}
 	
 	public String toString()
 	{
-		HashSet<String> prefixes = APKeeper.getAPPrefixes(apset);
+		HashSet<String> prefixes = APKeeper.getAPPrefixes(aps.keySet());
 		String loop = "loop found for " + prefixes + ":\n";
 		for (int i=0; i<path.size(); i++) {
 			loop += path.get(i) + " ";
@@ -37,29 +119,15 @@ public class Loop {
 	
 	@Override
 	public int hashCode(){
-		return 0;
+		return hash;
 	}
 	
 	@Override
-	public boolean equals (Object o) 
+	public boolean equals (Object o)
 	{
+		if (this == o) return true;
+		if (!(o instanceof Loop)) return false;
 		Loop loop = (Loop) o;
-		//if (!apset.equals(loop.apset)) return false;
-		if (path.size() != loop.path.size()) return false;
-		int i;
-		PositionTuple start = loop.path.get(0);
-		for (i=0; i< path.size(); i++) {
-			if (path.get(i).equals(start)){
-				break;
-			}
-		}
-		for (int j=0; j<path.size()-1; j++) {
-			if (!path.get((i+j)%(path.size()-1)).equals(loop.path.get(j))) {
-				return false;
-			}
-		}
-		// the loop already exists, update the AP set for this loop
-		apset.addAll(loop.apset);
-		return true;
+		return hash == loop.hash && Arrays.equals(cycle, loop.cycle);
 	}
 }
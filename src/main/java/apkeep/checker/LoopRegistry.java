@@ -0,0 +1,100 @@
+package apkeep.checker;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+
+import common.PositionTuple;
+
+/**
+ * The loops found so far, and the ones of them still present in the network.
+ * A loop is kept once whatever times it is found: a loop found again has its
+ * APs added to the loop registered first, and a removed loop found again is
+ * registered again with the APs it is found with.
+ * The present loops are indexed by the devices on them, so that the loops
+ * an update of a device may remove are found without scanning them all.
+ */
+public class LoopRegistry {
+	private HashMap<Loop, Loop> loops;
+	private HashMap<String, Set<Loop>> device_loops;
+	// the loops registered so far, the removed ones included, in order found
+	private LinkedHashMap<Loop, Loop> found;
+
+	public LoopRegistry() {
+		loops = new HashMap<>();
+		device_loops = new HashMap<>();
+		found = new LinkedHashMap<>();
+	}
+
+	public void add(Loop loop) {
+		Loop registered = loops.get(loop);
+		if (registered != null) {
+			registered.addAPs(loop);
+			return;
+		}
+		Loop removed = found.putIfAbsent(loop, loop);
+		if (removed != null) {
+			removed.setAPs(loop);
+			loop = removed;
+		}
+		loops.put(loop, loop);
+		for (PositionTuple pt : loop.path) {
+			device_loops.computeIfAbsent(pt.getDeviceName(), k -> new HashSet<>()).add(loop);
+		}
+	}
+
+	public void addAll(Collection<Loop> loops) {
+		for (Loop loop : loops) {
+			add(loop);
+		}
+	}
+
+	public void remove(Loop loop) {
+		if (loops.remove(loop) == null) return;
+		for (PositionTuple pt : loop.path) {
+			Set<Loop> through = device_loops.get(pt.getDeviceName());
+			if (through == null) continue;
+			through.remove(loop);
+			if (through.isEmpty()) device_loops.remove(pt.getDeviceName());
+		}
+	}
+
+	/**
+	 * @return the loops through a port of the device, as a copy
+	 */
+	public List<Loop> getLoops(String device) {
+		Set<Loop> through = device_loops.get(device);
+		if (through == null) return new ArrayList<>();
+		return new ArrayList<>(through);
+	}
+
+	public Collection<Loop> getLoops() {
+		return loops.values();
+	}
+
+	public int size() {
+		return loops.size();
+	}
+
+	/**
+	 * @return the loops registered so far, the removed ones included,
+	 *         each loop once however many times it was found
+	 */
+	public Collection<Loop> getFoundLoops() {
+		return found.values();
+	}
+
+	public int getFoundNum() {
+		return found.size();
+	}
+
+	public void clear() {
+		loops.clear();
+		device_loops.clear();
+		found.clear();
+	}
+}
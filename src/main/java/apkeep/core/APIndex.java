@@ -0,0 +1,109 @@
+package apkeep.core;
+
+import apkeep.utils.IntHashMap;
+import apkeep.utils.IntHashSet;
+import apkeep.utils.IntHashSet.IntIterator;
+import common.BDDACLWrapper;
+
+/**
+ * Indexes APs by the longest destination IP prefix covering each of them.
+ * A predicate can only intersect the APs whose covering prefix is on the
+ * same trie path as its own, i.e., an ancestor or a descendant of it.
+ */
+class APIndex {
+	
+	private static class Node {
+		Node parent;
+		Node[] children = new Node[2];
+		IntHashSet aps = new IntHashSet();
+		// the number of APs kept in this subtree
+		int subtree_aps = 0;
+	}
+	
+	private BDDACLWrapper bddengine;
+	private Node root;
+	private IntHashMap<Node> ap_node;
+	
+	public APIndex(BDDACLWrapper bdd_engine) {
+		bddengine = bdd_engine;
+		root = new Node();
+		ap_node = new IntHashMap<Node>();
+	}
+	
+	public void add(int ap) {
+		long cover = bddengine.getDstIPCoveringPrefix(ap);
+		int prefixlen = (int) (cover >>> 32);
+		
+		Node node = root;
+		for (int depth = 0; depth < prefixlen; depth++) {
+			int bit = getBit(cover, depth);
+			if (node.children[bit] == null) {
+				node.children[bit] = new Node();
+				node.children[bit].parent = node;
+			}
+			node = node.children[bit];
+		}
+		node.aps.add(ap);
+		ap_node.put(ap, node);
+		for (Node n = node; n != null; n = n.parent) {
+			n.subtree_aps++;
+		}
+	}
+	
+	public void remove(int ap) {
+		Node node = ap_node.remove(ap);
+		if (node == null) return;
+		node.aps.remove(ap);
+		for (Node n = node; n != null; n = n.parent) {
+			n.subtree_aps--;
+			// prune the empty subtree
+			if (n.subtree_aps == 0 && n.parent != null) {
+				Node[] siblings = n.parent.children;
+				siblings[siblings[0] == n ? 0 : 1] = null;
+			}
+		}
+	}
+	
+	/**
+	 * @param predicate
+	 * @return the APs that may intersect the predicate, 
+	 *         or null if the predicate is not covered by any prefix but 0/0
+	 */
+	public IntHashSet getCandidates(int predicate) {
+		long cover = bddengine.getDstIPCoveringPrefix(predicate);
+		int prefixlen = (int) (cover >>> 32);
+		if (prefixlen == 0) return null;
+		
+		IntHashSet candidates = new IntHashSet();
+		
+		// the APs covering the predicate
+		Node node = root;
+		for (int depth = 0; depth < prefixlen; depth++) {
+			candidates.addAll(node.aps);
+			node = node.children[getBit(cover, depth)];
+			if (node == null) return candidates;
+		}
+		
+		// the APs covered by the predicate
+		collectSubtree(node, candidates);
+		return candidates;
+	}
+	
+	private void collectSubtree(Node node, IntHashSet candidates) {
+		candidates.addAll(node.aps);
+		for (Node child : node.children) {
+			if (child != null) collectSubtree(child, candidates);
+		}
+	}
+	
+	private static int getBit(long cover, int depth) {
+		return (int) (cover >>> (BDDACLWrapper.ipBits - 1 - depth)) & 1;
+	}
+	
+	public void addAll(IntHashSet aps) {
+		IntIterator it = aps.intIterator();
+		while (it.hasNext()) {
+			add(it.nextInt());
+		}
+	}
+}
@@ -1,6 +1,7 @@
 package apkeep.core;
 
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
@@ -12,6 +13,9 @@ import apkeep.elements.NATElement;
 import apkeep.exception.APNotFoundException;
 import apkeep.exception.APSetNotFoundException;
 import apkeep.exception.MergeSelfException;
+import apkeep.utils.IntHashMap;
+import apkeep.utils.IntHashSet;
+import apkeep.utils.IntHashSet.IntIterator;
 import apkeep.utils.Logger;
 import apkeep.utils.Parameters;
 import common.ACLRule;
@@ -25,71 +29,218 @@ import jdd.bdd.BDD;
  */
 public class APKeeper {
 	private final static boolean MergeAP = Parameters.MergeAP;
+	private final static boolean ColumnarPPM = Parameters.ColumnarPPM;
+	private final static boolean AdaptiveMerge = Parameters.AdaptiveMerge;
+	private final static int MAX_PENDING_UPDATES = Parameters.MAX_PENDING_UPDATES;
 	
 	public static BDDACLWrapper bddengine;
-	private Set<Integer> AP;
+	private IntHashSet AP;
 	
 	private Map<String, Element> elements;
 	int element_number = 0;
 	HashMap<String, Integer> element_ids;
-	HashMap<Integer, String> id_element;
+	ArrayList<Element> id_element;
 	HashSet<String> nat_names;
 	
-	HashMap<Integer, ArrayList<String>> ap_ports;
-	HashMap<ArrayList<String>, HashSet<Integer>> ports_aps;	
-	HashSet<ArrayList<String>> ports_to_merge;
+	/*
+	 * port names are interned per element, so that the ports holding an AP
+	 * can be kept as a vector of small ints indexed by element id
+	 */
+	ArrayList<HashMap<String, Integer>> port_ids;
+	ArrayList<ArrayList<String>> id_port;
+	
+	IntHashMap<PortVector> ap_ports;
+	HashMap<PortVector, IntHashSet> ports_aps;	
+	// the vectors of ap_ports, hash-consed
+	PortVectorTable port_vectors;
+	
+	/*
+	 * the live APs are numbered densely, and the APs of each port are
+	 * kept as a bitset of their ids, indexed by element id and port id
+	 */
+	APRegistry ap_registry;
+	ArrayList<ArrayList<BitSet>> port_bits;
+	HashSet<PortVector> ports_to_merge;
+	
+	/*
+	 * columnar PPM: ap_ports is the single source of truth, splits and merges
+	 * are only logged, and each lazy element replays the log the next time
+	 * its port AP sets are read
+	 */
+	int[] eager_element_ids;
+	boolean[] lazy_elements;
+	ArrayList<APUpdate> pending_updates;
+	int[] replayed_updates;
+	
+	/*
+	 * built on the first candidate lookup
+	 */
+	APIndex ap_index;
 	
 	private int mergeable_aps = 0;
-	HashMap<String,Integer> cachePrefixBDD;
+	MergeScheduler merge_scheduler;
+	
+	/*
+	 * bumped on every split and merge, so that the auditor knows 
+	 * whether the AP set has changed during an audit round
+	 */
+	int ppm_version = 0;
+	PPMAuditor ppm_auditor;
+	
+	/*
+	 * prefix BDDs shared by the rules of all elements, looked up by prefix
+	 * length and masked prefix, and reference counted by the rules holding them
+	 */
+	ArrayList<IntHashMap<CachedPrefix>> cachePrefixBDD;
+	IntHashMap<CachedPrefix> cachedPrefixOfBDD;
+	
+	private static class CachedPrefix {
+		final int prefix;
+		final int prefixlen;
+		final int bdd;
+		int users = 0;
+		
+		CachedPrefix(int prefix, int prefixlen, int bdd) {
+			this.prefix = prefix;
+			this.prefixlen = prefixlen;
+			this.bdd = bdd;
+		}
+	}
 	
 	public APKeeper(BDDACLWrapper bdd_engine) {
 		bddengine = bdd_engine;
-		AP = new HashSet<Integer>();
+		AP = new IntHashSet();
 		
 		element_ids = new HashMap<String, Integer>();
-		id_element = new HashMap<>();
+		id_element = new ArrayList<>();
 		elements = new HashMap<String, Element>();
 		nat_names = new HashSet<String>();
 		
-		ap_ports = new HashMap<Integer, ArrayList<String>>();
-		ports_aps = new HashMap<ArrayList<String>, HashSet<Integer>>();	
-		ports_to_merge = new HashSet<ArrayList<String>>();
+		port_ids = new ArrayList<>();
+		id_port = new ArrayList<>();
+		
+		ap_ports = new IntHashMap<PortVector>();
+		port_vectors = new PortVectorTable();
+		ports_aps = new HashMap<PortVector, IntHashSet>();	
+		ports_to_merge = new HashSet<PortVector>();
+		
+		ap_registry = new APRegistry();
+		port_bits = new ArrayList<>();
 		
-		cachePrefixBDD = new HashMap<>();
+		pending_updates = new ArrayList<>();
+		ap_index = null;
+		merge_scheduler = new MergeScheduler();
+		ppm_auditor = new PPMAuditor(this, bdd_engine);
+		
+		cachePrefixBDD = new ArrayList<>(BDDACLWrapper.ipBits + 1);
+		for (int len = 0; len <= BDDACLWrapper.ipBits; len++) {
+			cachePrefixBDD.add(new IntHashMap<CachedPrefix>());
+		}
+		cachedPrefixOfBDD = new IntHashMap<CachedPrefix>();
 	}
 	
-	public void addElement(String ename, Element e) {
+	public int addElement(String ename, Element e) {
 		elements.put(ename, e);
 		element_ids.put(ename, element_number);
-		id_element.put(element_number, ename);
-		element_number ++;
+		id_element.add(e);
+		port_ids.add(new HashMap<>());
+		id_port.add(new ArrayList<>());
+		port_bits.add(new ArrayList<>());
+		return element_number ++;
+	}
+	
+	private int getPortId(int element_id, String port) {
+		HashMap<String, Integer> ids = port_ids.get(element_id);
+		Integer id = ids.get(port);
+		if (id == null) {
+			id = ids.size();
+			ids.put(port, id);
+			id_port.get(element_id).add(port);
+		}
+		return id;
+	}
+	
+	String getPortName(int element_id, int port_id) {
+		return id_port.get(element_id).get(port_id);
+	}
+	
+	BitSet getPortBits(int element_id, int port_id) {
+		ArrayList<BitSet> bits = port_bits.get(element_id);
+		while (bits.size() <= port_id) {
+			bits.add(new BitSet());
+		}
+		return bits.get(port_id);
+	}
+	
+	/*
+	 * set or clear the id of an AP at the ports of every element holding it
+	 */
+	private void setPortBits(PortVector ports, int id, boolean value) {
+		for (int element_id = 0; element_id < ports.size(); element_id++) {
+			getPortBits(element_id, ports.get(element_id)).set(id, value);
+		}
+	}
+	
+	public APRegistry getAPRegistry() {
+		return ap_registry;
+	}
+	
+	/**
+	 * @return the ids of the APs forwarded to the port, 
+	 * 		   up to date even when the port AP sets of the element lag behind
+	 */
+	public BitSet getPortAPBits(int element_id, String port) {
+		return getPortBits(element_id, getPortId(element_id, port));
+	}
+	
+	/**
+	 * @return the port of the element the AP is forwarded to
+	 */
+	public String getAPPort(int element_id, int ap) {
+		return getPortName(element_id, ap_ports.get(ap).get(element_id));
 	}
 	
 	public void initialize() {
 		int element_number = elements.keySet().size();
-		ArrayList<String> ports = new ArrayList<String>(element_number);
-		HashSet<Integer> aps = new HashSet<Integer>();
+		int[] port_arr = new int[element_number];
+		IntHashSet aps = new IntHashSet();
 		
-		for (int i=0; i<element_number; i++) {
-			ports.add("default");
-		}
 		for(String ename : elements.keySet()) {
 			Element e = elements.get(ename);
 			int element_id = element_ids.get(ename);
 			if (e instanceof ACLElement) {
-				ports.set(element_id, "deny");
+				port_arr[element_id] = getPortId(element_id, "deny");
 			}
-			else if (e instanceof NATElement) {
-				nat_names.add(ename);
+			else {
+				port_arr[element_id] = getPortId(element_id, "default");
+				if (e instanceof NATElement) {
+					nat_names.add(ename);
+				}
+			}
+		}
+		PortVector ports = port_vectors.intern(port_arr);
+		
+		// NAT elements keep their rewrite tables up to date for merging
+		ArrayList<Integer> eager_ids = new ArrayList<>();
+		lazy_elements = new boolean[element_number];
+		for (int element_id = 0; element_id < element_number; element_id++) {
+			if (!ColumnarPPM || id_element.get(element_id) instanceof NATElement) {
+				eager_ids.add(element_id);
+			}
+			else {
+				lazy_elements[element_id] = true;
 			}
 		}
+		eager_element_ids = eager_ids.stream().mapToInt(Number::intValue).toArray();
+		replayed_updates = new int[element_number];
 		
-		ap_ports.put(BDDACLWrapper.BDDTrue, ports);
+		putPorts(BDDACLWrapper.BDDTrue, ports);
 		
 		aps.add(BDDACLWrapper.BDDTrue);
 		ports_aps.put(ports, aps);
 		
 		AP.add(BDDACLWrapper.BDDTrue);
+		setPortBits(ports, ap_registry.register(BDDACLWrapper.BDDTrue), true);
 	}
 	
 	public boolean hasAP(int ap){
@@ -100,15 +251,25 @@ public class APKeeper {
 		return AP.size();
 	}
 	
+	IntHashSet getAPSet() {
+		return AP;
+	}
+	
+	public PPMAuditor getAuditor() {
+		return ppm_auditor;
+	}
+	
 	public Set<PositionTuple> getHoldPorts(int ap) throws Exception {
 		if(!AP.contains(ap)) {
 			throw new APNotFoundException(ap);
 		}
 		
 		Set<PositionTuple> pts = new HashSet<>();
-		for(int index=0; index < ap_ports.get(ap).size();index++) {
-			if(ap_ports.get(ap).get(index).equals("default")) continue;
-			pts.add(new PositionTuple(id_element.get(index), ap_ports.get(ap).get(index)));
+		PortVector ports = ap_ports.get(ap);
+		for(int index=0; index < ports.size();index++) {
+			String port = getPortName(index, ports.get(index));
+			if(port.equals("default")) continue;
+			pts.add(new PositionTuple(id_element.get(index).getName(), port));
 		}
 		
 		return pts;
@@ -120,8 +281,8 @@ public class APKeeper {
 	 * @return if the acl is true or force, return the set containing the acl itself;
 	 *         otherwise, return an ap expression
 	 */
-	public HashSet<Integer> getAPExp(int PredicateBDD){
-		HashSet<Integer> apexp = new HashSet<Integer> ();
+	public IntHashSet getAPExp(int PredicateBDD){
+		IntHashSet apexp = new IntHashSet();
 		// get the expression
 		if(PredicateBDD == BDDACLWrapper.BDDFalse)
 		{
@@ -129,11 +290,13 @@ public class APKeeper {
 		}
 		else if ( PredicateBDD == BDDACLWrapper.BDDTrue)
 		{
-			return new HashSet<Integer>(AP);
+			return new IntHashSet(AP);
 		}
 
-		for(int oneap : AP)
+		IntIterator it = getCandidateAPs(PredicateBDD).intIterator();
+		while(it.hasNext())
 		{
+			int oneap = it.nextInt();
 			if(bddengine.getBDD().and(oneap, PredicateBDD) != BDDACLWrapper.BDDFalse)
 			{
 				apexp.add(oneap);
@@ -142,6 +305,24 @@ public class APKeeper {
 		return apexp;
 	}
 	
+	private APIndex getAPIndex() {
+		if (ap_index == null) {
+			ap_index = new APIndex(bddengine);
+			ap_index.addAll(AP);
+		}
+		return ap_index;
+	}
+	
+	/**
+	 * @param pred
+	 * @return a set of APs including every AP that intersects pred
+	 */
+	public IntHashSet getCandidateAPs(int pred) {
+		IntHashSet candidates = getAPIndex().getCandidates(pred);
+		if (candidates == null) return AP;
+		return candidates;
+	}
+	
 	/**
 	 * add one predicate and recompute APs
 	 * @throws Exception 
@@ -153,7 +334,7 @@ public class APKeeper {
 		int predneg = thebdd.not(pred);
 		thebdd.ref(predneg);
 
-		HashSet<Integer> oldList = new HashSet<Integer>(AP);
+		int[] oldList = getCandidateAPs(pred).toIntArray();
 
 		for (int oldap : oldList) {
 			int parta = thebdd.and(pred, oldap);
@@ -166,30 +347,46 @@ public class APKeeper {
 		}
 	}
 	
+	/**
+	 * the caller holds one reference to the returned BDD, which an installed rule
+	 * keeps, otherwise it is given back by releasePrefixBDD
+	 * @param destip
+	 * @param prefixlen
+	 * @return the BDD of the destination IP prefix
+	 */
 	public int encodePrefixBDD(long destip, int prefixlen) {
-		String prefix = destip + " " + prefixlen;
-		if (cachePrefixBDD.containsKey(prefix)) {
-			return cachePrefixBDD.get(prefix);
-		}
-		else {
+		int prefix = prefixlen == 0 ? 0 : (int) (destip & (0xFFFFFFFFL << (BDDACLWrapper.ipBits - prefixlen)));
+		CachedPrefix cached = cachePrefixBDD.get(prefixlen).get(prefix);
+		if (cached == null) {
 			int prefixbdd = bddengine.encodeDstIPPrefix(destip, prefixlen);
-			cachePrefixBDD.put(prefix, prefixbdd);
-			return prefixbdd;
+			cached = new CachedPrefix(prefix, prefixlen, prefixbdd);
+			cachePrefixBDD.get(prefixlen).put(prefix, cached);
+			cachedPrefixOfBDD.put(prefixbdd, cached);
 		}
+		cached.users ++;
+		return cached.bdd;
 	}
 	
-	public void removePrefixBDD(long destip, int prefixlen) {
-		String prefix = destip + " " + prefixlen;
-		if (cachePrefixBDD.containsKey(prefix)) {
-			cachePrefixBDD.remove(prefix);
-		}
+	/**
+	 * drop one reference to a prefix BDD, 
+	 * the BDD is dereferenced when no rule holds it
+	 * @param prefixbdd
+	 */
+	public void releasePrefixBDD(int prefixbdd) {
+		CachedPrefix cached = cachedPrefixOfBDD.get(prefixbdd);
+		if (cached == null) return;
+		cached.users --;
+		if (cached.users > 0) return;
+		
+		cachePrefixBDD.get(cached.prefixlen).remove(cached.prefix);
+		cachedPrefixOfBDD.remove(prefixbdd);
+		bddengine.deref(prefixbdd);
 	}
 	
 	public int encodeACLBDD(ACLRule rule) {
 		return bddengine.ConvertACLRule(rule);
 	}
 	
-	@SuppressWarnings("unchecked")
 	public void updateSplitAP(int origin, int parta, int partb) throws Exception {
 		Logger.logDebugInfo("Splitting "+origin+" -> " +parta+" + "+partb);
 		if(!AP.contains(origin)) {
@@ -199,19 +396,26 @@ public class APKeeper {
 		AP.remove(origin);
 		AP.add(parta);
 		AP.add(partb);
+		ppm_version ++;
+		ap_registry.rename(origin, parta);
+		int id = ap_registry.register(partb);
+		if (ap_index != null) {
+			ap_index.remove(origin);
+			ap_index.add(parta);
+			ap_index.add(partb);
+		}
 		
 		if(ap_ports.containsKey(origin)){
-			ArrayList<String> ports = ap_ports.get(origin);
-			ap_ports.put(parta, ports);
-			ap_ports.put(partb, (ArrayList<String>)ports.clone());
+			// port vectors are immutable, so both parts share the one of origin
+			PortVector ports = ap_ports.get(origin);
+			putPorts(parta, ports);
+			putPorts(partb, ports);
+			setPortBits(ports, id, true);
 			
 			// update each element's AP set
-			for(String elementname : elements.keySet()){
-				String port = ports.get(element_ids.get(elementname));
-				elements.get(elementname).updateAPSplit(port, origin, parta, partb);
-			}
+			notifyElements(APUpdate.split(ports, origin, parta, partb));
 			
-			ap_ports.remove(origin);
+			removePorts(origin);
 			
 			if (MergeAP) {
 				ports_aps.get(ports).remove(origin);
@@ -233,25 +437,92 @@ public class APKeeper {
 //		}
 	}
 	
+	private void notifyElements(APUpdate update) throws Exception {
+		for (int element_id : eager_element_ids) {
+			applyUpdate(element_id, update);
+		}
+		if (!ColumnarPPM) return;
+		
+		pending_updates.add(update);
+		if (pending_updates.size() >= MAX_PENDING_UPDATES) {
+			flushPendingUpdates();
+		}
+	}
+	
+	private void applyUpdate(int element_id, APUpdate update) throws Exception {
+		Element e = id_element.get(element_id);
+		String port = getPortName(element_id, update.ports.get(element_id));
+		switch (update.kind) {
+		case SPLIT:
+			e.updateAPSplit(port, update.result, update.ap1, update.ap2);
+			break;
+		case MERGE:
+			e.updateAPSetMerge(port, update.result, update.ap1, update.ap2);
+			break;
+		case MERGE_BATCH:
+			e.updateAPSetMergeBatch(port, update.result, update.aps);
+			break;
+		}
+	}
+	
+	/**
+	 * bring the port AP sets of a lazy element up to date in the columnar PPM mode
+	 * @param element_id
+	 * @throws Exception
+	 */
+	public void syncElement(int element_id) throws Exception {
+		if (!ColumnarPPM || !lazy_elements[element_id]) return;
+		int next = replayed_updates[element_id];
+		if (next == pending_updates.size()) return;
+		for (; next < pending_updates.size(); next++) {
+			applyUpdate(element_id, pending_updates.get(next));
+		}
+		replayed_updates[element_id] = next;
+	}
+	
+	private void flushPendingUpdates() throws Exception {
+		for (int element_id = 0; element_id < element_number; element_id++) {
+			syncElement(element_id);
+			replayed_updates[element_id] = 0;
+		}
+		pending_updates.clear();
+	}
+	
+	private void putPorts(int ap, PortVector ports) {
+		port_vectors.hold(ports);
+		PortVector old = ap_ports.put(ap, ports);
+		if (old != null) port_vectors.release(old);
+	}
+	
+	private void removePorts(int ap) {
+		PortVector old = ap_ports.remove(ap);
+		if (old != null) port_vectors.release(old);
+	}
+	
 	public void updateTransferAP(PositionTuple pt1, PositionTuple pt2, int ap) throws APNotFoundException {
 		if(!ap_ports.containsKey(ap)){
 			throw new APNotFoundException(ap);
 		}
 		
-		ArrayList<String> ports = ap_ports.get(ap);
+		PortVector ports = ap_ports.get(ap);
+		int element_id = element_ids.get(pt2.getDeviceName());
+		int port_id = getPortId(element_id, pt2.getPortName());
+		
+		int id = ap_registry.idOf(ap);
+		getPortBits(element_id, ports.get(element_id)).clear(id);
+		getPortBits(element_id, port_id).set(id);
 
 		if (!MergeAP) {
-			ports.set(element_ids.get(pt2.getDeviceName()), pt2.getPortName());
+			putPorts(ap, port_vectors.with(ports, element_id, port_id));
 		}
 		else {
-			HashSet<Integer> aps = ports_aps.get(ports);
+			IntHashSet aps = ports_aps.get(ports);
 			aps.remove(ap);
 			
 			// the ap set becomes empty, then remove the ports entry
 			if (aps.isEmpty()) { 
 				ports_aps.remove(ports);
 			}
-			// the ap set is non-empty, then clone the ports
 			else {
 				mergeable_aps --;
 				
@@ -259,15 +530,13 @@ public class APKeeper {
 				if (aps.size() == 1) {
 					ports_to_merge.remove(ports);
 				}
-				
-				ports = new ArrayList<String>(ports);
 			}
 			
-			ports.set(element_ids.get(pt2.getDeviceName()), pt2.getPortName());
-			ap_ports.put(ap, ports);
+			ports = port_vectors.with(ports, element_id, port_id);
+			putPorts(ap, ports);
 			
 			if(!ports_aps.containsKey(ports)) {
-				ports_aps.put(ports, new HashSet<Integer>());
+				ports_aps.put(ports, new IntHashSet());
 			}
 			aps = ports_aps.get(ports);
 			if (!aps.isEmpty()) {
@@ -289,7 +558,7 @@ public class APKeeper {
 		return true;
 	}
 	
-	public boolean checkRWMergable(HashSet<Integer> aps) {
+	public boolean checkRWMergable(IntHashSet aps) {
 		if (nat_names.isEmpty()) return true;
 		for (String nat_name : nat_names) {
 			NATElement nat = (NATElement) elements.get(nat_name);
@@ -299,19 +568,32 @@ public class APKeeper {
 	}
 	
 	public boolean isMergeable() {
+		if(AdaptiveMerge) {
+			return merge_scheduler.shouldMerge(AP.size(), mergeable_aps);
+		}
 		if(AP.size() > Parameters.TOTAL_AP_THRESHOLD 
 				&& mergeable_aps > Parameters.LOW_MERGEABLE_AP_THRESHOLD) return true;
 		if(mergeable_aps > Parameters.HIGH_MERGEABLE_AP_THRESHOLD) return true;
 		return false;
 	}
 	
+	/**
+	 * @return true if the mergeable APs left for the idle slots
+	 *         exceed the high threshold
+	 */
+	public boolean isMergeOverdue() {
+		return mergeable_aps > Parameters.HIGH_MERGEABLE_AP_THRESHOLD;
+	}
+	
 	public int tryMergeAP(int ap) throws Exception {
 		if (!MergeAP) return ap;
 		
-		ArrayList<String> ports = ap_ports.get(ap);
-		HashSet<Integer> aps = ports_aps.get(ports);
+		PortVector ports = ap_ports.get(ap);
+		IntHashSet aps = ports_aps.get(ports);
 		if (aps.size()>1) {
-			for(int one_ap: aps) {
+			IntIterator it = aps.intIterator();
+			while(it.hasNext()) {
+				int one_ap = it.nextInt();
 				if (one_ap == ap) continue;
 				if (!checkRWMergable(one_ap, ap)) continue;
 				int merged_ap = bddengine.or(ap, one_ap);
@@ -326,22 +608,103 @@ public class APKeeper {
 		return ap;
 	}
 	
+	/**
+	 * report the time of one update, which pays for the mergeable APs it carries
+	 * @param update_time in nanoseconds
+	 */
+	public void recordUpdateTime(long update_time) {
+		merge_scheduler.recordUpdate(update_time, AP.size(), mergeable_aps);
+	}
+	
 	public void tryMergeAPBatch() throws Exception {
+		tryMergeAPBatch(Long.MAX_VALUE);
+	}
+	
+	/**
+	 * merge the port vectors until the deadline has passed, 
+	 * at least two APs are merged so that merging makes progress
+	 * @param deadline in System.nanoTime()
+	 */
+	public void tryMergeAPBatch(long deadline) throws Exception {
 		if (ports_to_merge.isEmpty()) return;
 		
-		for (ArrayList<String> ports : new ArrayList<>(ports_to_merge)) {
-			HashSet<Integer> aps = ports_aps.get(ports);
-			if(aps.size()<2) {
-				throw new MergeSelfException(aps.toArray()[0]);
+		for (PortVector ports : new ArrayList<>(ports_to_merge)) {
+			mergePortVector(ports, deadline);
+			if (System.nanoTime() >= deadline) break;
+		}
+	}
+	
+	public void tryScheduledMergeAPBatch() throws Exception {
+		tryScheduledMergeAPBatch(Long.MAX_VALUE);
+	}
+	
+	/**
+	 * merge the port vectors holding the most APs first, 
+	 * until the merge time exceeds what the scheduler has budgeted
+	 * or the deadline has passed
+	 * @param deadline in System.nanoTime()
+	 */
+	public void tryScheduledMergeAPBatch(long deadline) throws Exception {
+		if (!AdaptiveMerge) {
+			tryMergeAPBatch(deadline);
+			return;
+		}
+		if (ports_to_merge.isEmpty()) return;
+		
+		ArrayList<PortVector> candidates = new ArrayList<>(ports_to_merge);
+		candidates.sort((p1, p2) -> ports_aps.get(p2).size() - ports_aps.get(p1).size());
+		double budget = merge_scheduler.getBudget(AP.size(), mergeable_aps);
+		long spent = 0;
+		for (PortVector ports : candidates) {
+			long start = System.nanoTime();
+			mergePortVector(ports, deadline);
+			long end = System.nanoTime();
+			spent += end - start;
+			if (spent >= budget || end >= deadline) break;
+		}
+	}
+	
+	/*
+	 * without a deadline, all the APs of the port vector are merged in one batch;
+	 * with one, they are merged one at a time and the APs merged by the deadline
+	 * replace them, the rest of the port vector is left for a later merge
+	 */
+	private void mergePortVector(PortVector ports, long deadline) throws Exception {
+		IntHashSet aps = ports_aps.get(ports);
+		if(aps.size()<2) {
+			throw new MergeSelfException(aps.first());
+		}
+		if (!checkRWMergable(aps)) return;
+		
+		long start = System.nanoTime();
+		int[] apsarr = aps.toIntArray();
+		int merged_ap;
+		IntHashSet merging = aps;
+		if (deadline == Long.MAX_VALUE) {
+			merged_ap = bddengine.OrInBatch(apsarr);
+		}
+		else {
+			merged_ap = bddengine.or(apsarr[0], apsarr[1]);
+			int next = 2;
+			for (; next < apsarr.length && System.nanoTime() < deadline; next++) {
+				int merged = bddengine.or(merged_ap, apsarr[next]);
+				bddengine.deref(merged_ap);
+				merged_ap = merged;
 			}
-			if (!checkRWMergable(aps)) continue;
-			
-			int[] apsarr = aps.stream().mapToInt(Number::intValue).toArray();
-			int merged_ap = bddengine.OrInBatch(apsarr);
-			mergeable_aps = mergeable_aps - aps.size() + 1;
-			updateMergeAPBatch(merged_ap, aps);
+			if (next < apsarr.length) {
+				merging = new IntHashSet(next);
+				for (int i = 0; i < next; i++) {
+					merging.add(apsarr[i]);
+				}
+			}
+		}
+		int merged_aps = merging.size() - 1;
+		mergeable_aps = mergeable_aps - merged_aps;
+		updateMergeAPBatch(merged_ap, merging);
+		if (aps.size() < 2) {
 			ports_to_merge.remove(ports);
 		}
+		merge_scheduler.recordMerge(System.nanoTime() - start, merged_aps);
 	}
 	
 	public void updateMergeAP(int ap1, int ap2, int merged_ap) throws Exception {
@@ -355,17 +718,23 @@ public class APKeeper {
 		AP.remove(ap1);
 		AP.remove(ap2);
 		AP.add(merged_ap);
-		
-		ArrayList<String> ports = ap_ports.get(ap1);
-		for(String elementname : elements.keySet()){
-			String port = ports.get(element_ids.get(elementname));
-			elements.get(elementname).updateAPSetMerge(port, merged_ap, ap1, ap2);
+		ppm_version ++;
+		ap_registry.rename(ap1, merged_ap);
+		int id = ap_registry.release(ap2);
+		if (ap_index != null) {
+			ap_index.remove(ap1);
+			ap_index.remove(ap2);
+			ap_index.add(merged_ap);
 		}
-		ap_ports.remove(ap1);
-		ap_ports.remove(ap2);
-		ap_ports.put(merged_ap, ports);
 		
-		HashSet<Integer> aps = ports_aps.get(ports);
+		PortVector ports = ap_ports.get(ap1);
+		notifyElements(APUpdate.merge(ports, ap1, ap2, merged_ap));
+		setPortBits(ports, id, false);
+		putPorts(merged_ap, ports);
+		removePorts(ap1);
+		removePorts(ap2);
+		
+		IntHashSet aps = ports_aps.get(ports);
 		aps.remove(ap1);
 		aps.remove(ap2);
 		aps.add(merged_ap);
@@ -381,7 +750,7 @@ public class APKeeper {
 //		}
 	}
 	
-	public void updateMergeAPBatch (int merged_ap, HashSet<Integer> aps) throws Exception
+	public void updateMergeAPBatch (int merged_ap, IntHashSet aps) throws Exception
 	{
 		Logger.logDebugInfo("Merging "+aps+" -> " +merged_ap);
 		if(!AP.containsAll(aps)) {
@@ -390,20 +759,38 @@ public class APKeeper {
 		
 		AP.removeAll(aps);
 		AP.add(merged_ap);
-		
-		ArrayList<String> ports = ap_ports.get(aps.toArray()[0]);
-		ap_ports.put(merged_ap, ports);
-		for(String elementname : elements.keySet()){
-			String port = ports.get(element_ids.get(elementname));
-			elements.get(elementname).updateAPSetMergeBatch(port, merged_ap, aps);
+		ppm_version ++;
+		if (ap_index != null) {
+			IntIterator it = aps.intIterator();
+			while (it.hasNext()) {
+				ap_index.remove(it.nextInt());
+			}
+			ap_index.add(merged_ap);
 		}
-		for (int ap : aps) {
+		
+		PortVector ports = ap_ports.get(aps.first());
+		putPorts(merged_ap, ports);
+		notifyElements(APUpdate.mergeBatch(ports, aps, merged_ap));
+		int kept_ap = aps.first();
+		IntIterator it = aps.intIterator();
+		while (it.hasNext()) {
+			int ap = it.nextInt();
 			bddengine.deref(ap);
-			ap_ports.remove(ap);
+			removePorts(ap);
+			if (ap != kept_ap) setPortBits(ports, ap_registry.release(ap), false);
 		}
+		ap_registry.rename(kept_ap, merged_ap);
 		
-		aps.clear();
-		aps.add(merged_ap);
+		// the APs may be only a part of the APs of the port vector
+		IntHashSet port_aps = ports_aps.get(ports);
+		if (port_aps != null && port_aps != aps) {
+			port_aps.removeAll(aps);
+			port_aps.add(merged_ap);
+		}
+		else {
+			aps.clear();
+			aps.add(merged_ap);
+		}
 		
 		/*
 		 * enabling Consistent check will affect efficiency
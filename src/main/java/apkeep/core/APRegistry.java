@@ -0,0 +1,149 @@
+package apkeep.core;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Set;
+
+import apkeep.utils.IntHashMap;
+import apkeep.utils.IntHashSet;
+import apkeep.utils.IntHashSet.IntIterator;
+
+/**
+ * Numbers the live APs densely, so that AP sets can be kept as bitsets.
+ * The ids of removed APs are recycled, and a split or a merge hands
+ * the id of the old AP over to one of the new ones, so the ids stay
+ * as dense as the number of live APs.
+ * Each id has a generation, bumped whenever the id changes hands, so that
+ * an AP kept aside can be told apart from a later AP with the same BDD node.
+ */
+public class APRegistry {
+	private IntHashMap<Integer> ids;
+	private int[] aps;
+	private int[] generations;
+	private BitSet live;
+	private int[] free_ids;
+	private int free_num;
+	private int next_id;
+
+	APRegistry() {
+		ids = new IntHashMap<>();
+		aps = new int[64];
+		generations = new int[64];
+		live = new BitSet();
+		free_ids = new int[16];
+		free_num = 0;
+		next_id = 0;
+	}
+
+	int register(int ap) {
+		int id;
+		if (free_num > 0) {
+			id = free_ids[--free_num];
+		}
+		else {
+			id = next_id++;
+			if (id == aps.length) {
+				aps = Arrays.copyOf(aps, id * 2);
+				generations = Arrays.copyOf(generations, id * 2);
+			}
+		}
+		aps[id] = ap;
+		generations[id]++;
+		ids.put(ap, id);
+		live.set(id);
+		return id;
+	}
+
+	/**
+	 * @return the id of the AP, which now stands for the new AP
+	 */
+	int rename(int ap, int new_ap) {
+		int id = ids.remove(ap);
+		aps[id] = new_ap;
+		generations[id]++;
+		ids.put(new_ap, id);
+		return id;
+	}
+
+	/**
+	 * @return the id of the AP, free to be reused
+	 */
+	int release(int ap) {
+		int id = ids.remove(ap);
+		live.clear(id);
+		generations[id]++;
+		if (free_num == free_ids.length) {
+			free_ids = Arrays.copyOf(free_ids, free_num * 2);
+		}
+		free_ids[free_num++] = id;
+		return id;
+	}
+
+	/**
+	 * @return -1 if the AP is not live
+	 */
+	public int idOf(int ap) {
+		Integer id = ids.get(ap);
+		return id == null ? -1 : id;
+	}
+
+	public int apOf(int id) {
+		return aps[id];
+	}
+
+	/**
+	 * @return the id of the AP with its generation, -1 if the AP is not live
+	 */
+	public long stampOf(int ap) {
+		int id = idOf(ap);
+		if (id < 0) return -1;
+		return ((long) id << 32) | (generations[id] & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * @return false if the AP of the stamp has been split, merged or removed since
+	 */
+	public boolean isCurrent(long stamp) {
+		if (stamp < 0) return false;
+		int id = (int) (stamp >>> 32);
+		return live.get(id) && generations[id] == (int) stamp;
+	}
+
+	/**
+	 * @return a copy of the ids of all live APs
+	 */
+	public BitSet getLiveIds() {
+		return (BitSet) live.clone();
+	}
+
+	/**
+	 * @return the ids of the live APs of the set, the others are dropped
+	 */
+	public BitSet toBits(Set<Integer> ap_set) {
+		BitSet bits = new BitSet();
+		if (ap_set instanceof IntHashSet) {
+			IntIterator it = ((IntHashSet) ap_set).intIterator();
+			while (it.hasNext()) {
+				setBit(bits, it.nextInt());
+			}
+			return bits;
+		}
+		for (int ap : ap_set) {
+			setBit(bits, ap);
+		}
+		return bits;
+	}
+
+	private void setBit(BitSet bits, int ap) {
+		int id = idOf(ap);
+		if (id >= 0) bits.set(id);
+	}
+
+	public IntHashSet toSet(BitSet bits) {
+		IntHashSet ap_set = new IntHashSet(bits.cardinality());
+		for (int id = bits.nextSetBit(0); id >= 0; id = bits.nextSetBit(id+1)) {
+			ap_set.add(aps[id]);
+		}
+		return ap_set;
+	}
+}
@@ -0,0 +1,43 @@
+package apkeep.core;
+
+import apkeep.utils.IntHashSet;
+
+/**
+ * A split or merge of APs that has not yet been applied to the port AP
+ * sets of every element, used by the columnar PPM mode.
+ * The port vector tells on which port each element holds the APs.
+ */
+class APUpdate {
+	enum Kind { SPLIT, MERGE, MERGE_BATCH }
+
+	final Kind kind;
+	final PortVector ports;
+	final int ap1;
+	final int ap2;
+	final int result;
+	final IntHashSet aps;
+
+	private APUpdate(Kind kind, PortVector ports, int ap1, int ap2, int result, IntHashSet aps) {
+		this.kind = kind;
+		this.ports = ports;
+		this.ap1 = ap1;
+		this.ap2 = ap2;
+		this.result = result;
+		this.aps = aps;
+	}
+
+	/*
+	 * origin -> parta + partb
+	 */
+	static APUpdate split(PortVector ports, int origin, int parta, int partb) {
+		return new APUpdate(Kind.SPLIT, ports, parta, partb, origin, null);
+	}
+
+	static APUpdate merge(PortVector ports, int ap1, int ap2, int merged_ap) {
+		return new APUpdate(Kind.MERGE, ports, ap1, ap2, merged_ap, null);
+	}
+
+	static APUpdate mergeBatch(PortVector ports, IntHashSet aps, int merged_ap) {
+		return new APUpdate(Kind.MERGE_BATCH, ports, 0, 0, merged_ap, new IntHashSet(aps));
+	}
+}
@@ -0,0 +1,73 @@
+package apkeep.core;
+
+import apkeep.utils.Parameters;
+
+/**
+ * Decides when the mergeable APs of an APKeeper are worth merging.
+ *
+ * Every update pays for the extra APs it carries, roughly in proportion to
+ * the share of mergeable APs among all APs. A batch merge pays once, in
+ * proportion to the number of APs it removes. The scheduler accumulates
+ * the measured carrying cost and triggers a merge once it has paid for the
+ * estimated merge cost, so the thresholds adapt to each network.
+ * Until a merge has been measured, the static thresholds are used.
+ */
+class MergeScheduler {
+	// weight of the latest measurement in the running averages
+	private final static double ALPHA = 0.2;
+
+	// estimated nanoseconds to merge away one AP, negative if not measured yet
+	private double merge_cost_per_ap = -1;
+	// carrying cost accumulated since the last merge, in nanoseconds
+	private double carried_cost = 0;
+
+	/**
+	 * @param update_time - nanoseconds spent on one update
+	 * @param ap_num - the number of APs
+	 * @param mergeable_aps - the number of APs that would be removed by merging
+	 */
+	public void recordUpdate(long update_time, int ap_num, int mergeable_aps) {
+		if (ap_num == 0 || mergeable_aps <= 0) return;
+		carried_cost += (double) update_time * mergeable_aps / ap_num;
+	}
+
+	/**
+	 * @param merge_time - nanoseconds spent on merging one port vector
+	 * @param merged_aps - the number of APs removed by the merge
+	 */
+	public void recordMerge(long merge_time, int merged_aps) {
+		if (merged_aps <= 0) return;
+		double cost = (double) merge_time / merged_aps;
+		if (merge_cost_per_ap < 0) {
+			merge_cost_per_ap = cost;
+		}
+		else {
+			merge_cost_per_ap = ALPHA * cost + (1 - ALPHA) * merge_cost_per_ap;
+		}
+		carried_cost = Math.max(0, carried_cost - merge_time);
+	}
+
+	public boolean shouldMerge(int ap_num, int mergeable_aps) {
+		if (mergeable_aps <= 0) return false;
+		if (merge_cost_per_ap < 0) {
+			if(ap_num > Parameters.TOTAL_AP_THRESHOLD
+					&& mergeable_aps > Parameters.LOW_MERGEABLE_AP_THRESHOLD) return true;
+			return mergeable_aps > Parameters.HIGH_MERGEABLE_AP_THRESHOLD;
+		}
+		// bound the memory held by mergeable APs whatever the measured costs are
+		if (mergeable_aps * 2 > ap_num) return true;
+		return carried_cost >= merge_cost_per_ap * mergeable_aps;
+	}
+
+	/**
+	 * @return the merge time the accumulated carrying cost can pay for,
+	 * 		   used to pick the port vectors of a scheduled merge;
+	 * 		   unbounded when the merge is not driven by the measured costs
+	 */
+	public double getBudget(int ap_num, int mergeable_aps) {
+		if (merge_cost_per_ap < 0 || mergeable_aps * 2 > ap_num) {
+			return Double.POSITIVE_INFINITY;
+		}
+		return carried_cost;
+	}
+}
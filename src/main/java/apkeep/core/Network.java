@@ -7,12 +7,15 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
 import apkeep.checker.Checker;
 import apkeep.checker.ForwardingGraph;
+import apkeep.checker.Loop;
+import apkeep.checker.LoopRegistry;
 import apkeep.elements.ACLElement;
 import apkeep.elements.Element;
 import apkeep.elements.ForwardElement;
@@ -21,10 +24,16 @@ import apkeep.exception.ElementNotFoundException;
 import apkeep.rules.Rule;
 import apkeep.utils.Evaluator;
 import apkeep.utils.Logger;
+import apkeep.utils.Parameters;
 import common.BDDACLWrapper;
 import common.PositionTuple;
 
 public class Network {
+	private final static int IDLE_MERGE_BUDGET = Parameters.IDLE_MERGE_BUDGET;
+	private final static int IDLE_SLOT_INTERVAL = Parameters.IDLE_SLOT_INTERVAL;
+	private final static int AUDIT_SAMPLES = Parameters.AUDIT_SAMPLES;
+	private final static boolean SnapshotLoad = Parameters.SnapshotLoad;
+	private final static boolean PerAPCheck = Parameters.PerAPCheck;
 
 	protected String name;
 	protected boolean division_activated = false;
@@ -54,6 +63,8 @@ public class Network {
 	protected APKeeper acl_apk; // the APKeeper for ACL devices
 
 	private Checker checker;
+	// the updates done since the last idle slot
+	private int updates_since_idle_slot;
 	
 	public Network(String network_name) {
 		name = network_name;
@@ -74,6 +85,7 @@ public class Network {
 		Element.setBDDWrapper(bdd_engine);
 		
 		checker = new Checker(this);
+		updates_since_idle_slot = 0;
 	}
 	
 	public void initializeNetwork(ArrayList<String> l1_links, 
@@ -239,6 +251,18 @@ public class Network {
 		return fwd_apk.getHoldPorts(ap);
 	}
 	
+	public APRegistry getAPRegistry() {
+		return fwd_apk.getAPRegistry();
+	}
+	
+	/**
+	 * @return the registry of the ACL APs, null if ACLs are not divided from forwarding
+	 */
+	public APRegistry getACLAPRegistry() {
+		if(!division_activated) return null;
+		return acl_apk.getAPRegistry();
+	}
+	
 	public int getAPNum() {
 		if(division_activated) {
 			return fwd_apk.getAPNum()+acl_apk.getAPNum();
@@ -252,6 +276,15 @@ public class Network {
 		
 		eva.startExp();
 		
+		if (SnapshotLoad) {
+			int snapshot_size = 0;
+			while (snapshot_size < rules.size() && isInsertion(rules.get(snapshot_size))) {
+				snapshot_size ++;
+			}
+			loadSnapshot(eva, rules.subList(0, snapshot_size));
+			rules = rules.subList(snapshot_size, rules.size());
+		}
+		
 		for(String rule : rules) {
 			updateRule(eva, rule);
 		}
@@ -272,6 +305,17 @@ public class Network {
 		eva.startExp();
 		
 		String OneLine;
+		if (SnapshotLoad) {
+			List<String> snapshot = new ArrayList<>();
+			while((OneLine = br.readLine()) != null && isInsertion(OneLine.trim())) {
+				snapshot.add(OneLine.trim());
+			}
+			loadSnapshot(eva, snapshot);
+			if (OneLine != null) {
+				updateRule(eva, OneLine.trim());
+			}
+		}
+		
 		while((OneLine = br.readLine()) != null) {
 			String linestr = OneLine.trim();
 			updateRule(eva, linestr);
@@ -294,10 +338,13 @@ public class Network {
 			hardMergeAPBatch();
 			eva.setInsertAP(getAPNum());
 		}
+		Element e = getElement(type, device, rule);
+		
 		/*
 		 * Updating PPM
 		 */
-		Set<Integer> moved_aps = updateRule(eva, op, type, device, rule);
+		long start = System.nanoTime();
+		Set<Integer> moved_aps = updateRule(eva, op, e, rule);
 		if (moved_aps == null) return;
 		eva.midUpdate();
 		
@@ -307,14 +354,28 @@ public class Network {
 		if (!moved_aps.isEmpty()) {
 			checkProperty(eva, device, moved_aps);
 		}
+		getAPKeeper(e).recordUpdateTime(System.nanoTime() - start);
 		
-		softMergeAPBatch();
+		/*
+		 * with idle slots, merging waits for the next slot unless the slots
+		 * fall so far behind that the mergeable APs exceed the high threshold
+		 */
+		if (IDLE_MERGE_BUDGET == 0 || fwd_apk.isMergeOverdue()
+				|| acl_apk != null && acl_apk.isMergeOverdue()) {
+			softMergeAPBatch();
+		}
 		
 		eva.endUpdate();
 		eva.printUpdateResults(getAPNum());
+		
+		// the replayed updates come back to back, so the slots are taken by count
+		if (++updates_since_idle_slot >= IDLE_SLOT_INTERVAL) {
+			updates_since_idle_slot = 0;
+			runIdleSlot(eva);
+		}
 	}
 	
-	private Set<Integer> updateRule(Evaluator eva, String op, String type, String device, String rule) throws Exception{
+	private Element getElement(String type, String device, String rule) throws ElementNotFoundException {
 		String element_name = null;
 		if(type.equals("nat")) {
 			element_name = device+"_"+rule.split(" ")[3];
@@ -326,7 +387,17 @@ public class Network {
 		if (e == null) {
 			throw new ElementNotFoundException(element_name);
 		}
-		
+		return e;
+	}
+	
+	/*
+	 * the APKeeper whose PPM the rules of the element change
+	 */
+	private APKeeper getAPKeeper(Element e) {
+		return division_activated && e instanceof ACLElement ? acl_apk : fwd_apk;
+	}
+	
+	private Set<Integer> updateRule(Evaluator eva, String op, Element e, String rule) throws Exception{
 		List<ChangeItem> change_set = new ArrayList<>();
 		
 		/*
@@ -352,26 +423,162 @@ public class Network {
 		return moved_aps;
 	}
 	
+	private boolean isInsertion(String rule) {
+		return rule.startsWith("+ ");
+	}
+	
+	/**
+	 * Building the PPM from a snapshot at once, instead of replaying it rule by rule.
+	 * The forwarding table and the ACLs of each element are inserted in one pass,
+	 * so the APs are only split by the final port predicates, and the snapshot
+	 * is verified once from every forwarding element; the other rules, 
+	 * e.g., NAT rules, are replayed one by one afterwards.
+	 * @param rules - the insertions of the snapshot, as in the update file
+	 */
+	public void loadSnapshot(Evaluator eva, List<String> rules) throws Exception {
+		Map<String, List<String>> element_rules = new LinkedHashMap<>();
+		List<String> other_rules = new ArrayList<>();
+		for (String rule : rules) {
+			String[] tokens = rule.split(" ");
+			Element e = elements.get(tokens[2]);
+			if (!tokens[1].equals("nat") && (e instanceof ForwardElement || e instanceof ACLElement)) {
+				element_rules.computeIfAbsent(tokens[2], k -> new ArrayList<>()).add(rule);
+			}
+			else {
+				other_rules.add(rule);
+			}
+		}
+		
+		if (!element_rules.isEmpty()) {
+			/*
+			 * the match fields are encoded before the update is timed, 
+			 * as for the updates applied one by one
+			 */
+			long encode_start = System.nanoTime();
+			Map<String, List<Rule>> element_encoded_rules = new LinkedHashMap<>();
+			for (String element_name : element_rules.keySet()) {
+				Element e = elements.get(element_name);
+				List<Rule> encoded_rules = new ArrayList<>();
+				for (String rule : element_rules.get(element_name)) {
+					encoded_rules.add(e.encodeOneRule(rule));
+				}
+				element_encoded_rules.put(element_name, encoded_rules);
+			}
+			eva.setEncodeTime(System.nanoTime() - encode_start);
+			
+			eva.startUpdate();
+			for (String element_name : element_encoded_rules.keySet()) {
+				Element e = elements.get(element_name);
+				List<Rule> encoded_rules = element_encoded_rules.get(element_name);
+				List<ChangeItem> change_set = null;
+				if (e instanceof ACLElement) {
+					change_set = ((ACLElement) e).insertRules(encoded_rules);
+				}
+				else {
+					change_set = ((ForwardElement) e).insertRules(encoded_rules);
+				}
+				e.updatePortPredicateMap(change_set);
+			}
+			eva.midUpdate();
+			
+			Set<Integer> aps = new HashSet<>(fwd_apk.getAPSet());
+			for (Element e : elements.values()) {
+				if (e instanceof ForwardElement) {
+					checkProperty(eva, e.getName(), aps);
+				}
+			}
+			
+			eva.endUpdate();
+			eva.printUpdateResults(getAPNum());
+		}
+		
+		for (String rule : other_rules) {
+			updateRule(eva, rule);
+		}
+	}
+	
 	public void checkProperty(Evaluator eva, String device, Set<Integer> moved_aps) throws Exception {
 		if(division_activated) {
 			checker.checkPropertyDivision(device, moved_aps);
 		}
+		else if(PerAPCheck) {
+			checker.checkPropertyPerAP(device, moved_aps);
+		}
 		else {
 			checker.checkProperty(device, moved_aps);
 		}
 		
+		/*
+		 * the loops through the device found before are removed
+		 * once no AP is forwarded around them any more
+		 */
+		LoopRegistry loops = eva.getLoops();
+		for(Loop loop : loops.getLoops(device)) {
+			if(!checker.recheckLoop(loop, device, moved_aps)) loops.remove(loop);
+		}
 		eva.addLoops(checker.getLoops());
 	}
 	
 	private void softMergeAPBatch() throws Exception {
 		if(fwd_apk.isMergeable()) {
-			fwd_apk.tryMergeAPBatch();
+			fwd_apk.tryScheduledMergeAPBatch();
 		}
 		if (acl_apk != null) {
 			acl_apk.tryMergeAPBatch();
 		}
 	}
 	
+	/**
+	 * An idle slot, taken every IDLE_SLOT_INTERVAL updates: APs are merged for
+	 * at most IDLE_MERGE_BUDGET and a few sampled APs are audited.
+	 * The PPM is only changed between updates, so the checker always sees
+	 * a consistent PPM; the slot time is reported apart from the update time.
+	 */
+	public void runIdleSlot(Evaluator eva) throws Exception {
+		if (IDLE_MERGE_BUDGET == 0 && AUDIT_SAMPLES == 0) return;
+		
+		eva.startIdle();
+		mergeWhenIdle();
+		auditWhenIdle();
+		eva.endIdle();
+	}
+	
+	private void mergeWhenIdle() throws Exception {
+		if (IDLE_MERGE_BUDGET == 0) return;
+		
+		long deadline = System.nanoTime() + IDLE_MERGE_BUDGET * 1000L;
+		if(fwd_apk.isMergeable()) {
+			fwd_apk.tryScheduledMergeAPBatch(deadline);
+		}
+		if (acl_apk != null && System.nanoTime() < deadline) {
+			acl_apk.tryMergeAPBatch(deadline);
+		}
+	}
+	
+	private void auditWhenIdle() {
+		if (AUDIT_SAMPLES == 0) return;
+		
+		fwd_apk.getAuditor().audit(AUDIT_SAMPLES);
+		if (acl_apk != null) {
+			acl_apk.getAuditor().audit(AUDIT_SAMPLES);
+		}
+	}
+	
+	public void setAuditAlert(PPMAuditor.Alert alert) {
+		fwd_apk.getAuditor().setAlert(alert);
+		if (acl_apk != null) {
+			acl_apk.getAuditor().setAlert(alert);
+		}
+	}
+	
+	public long getAuditViolations() {
+		long violations = fwd_apk.getAuditor().getViolations();
+		if (acl_apk != null) {
+			violations += acl_apk.getAuditor().getViolations();
+		}
+		return violations;
+	}
+	
 	private void hardMergeAPBatch() throws Exception {
 		fwd_apk.tryMergeAPBatch();
 		if (acl_apk != null) {
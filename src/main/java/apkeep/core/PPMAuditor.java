@@ -0,0 +1,173 @@
+package apkeep.core;
+
+import java.util.Random;
+
+import apkeep.elements.Element;
+import apkeep.utils.IntHashSet;
+import apkeep.utils.Logger;
+import apkeep.utils.Parameters;
+import common.BDDACLWrapper;
+
+/**
+ * Validates the PPM of an APKeeper a few sampled APs at a time.
+ *
+ * A round walks a snapshot of the APs; each sampled AP is checked against
+ * ap_ports, ports_aps and the port AP sets of every element, checked to be
+ * a live non-empty BDD, and checked to be disjoint from another random AP.
+ * The elements a columnar PPM replays lazily are checked against the port
+ * AP bits instead, so that the audit does not force their replay.
+ * The audited APs are OR-ed together, and the coverage of the whole header
+ * space is checked at the end of a round that saw no split or merge.
+ *
+ * The reference counts of the AP BDDs are not audited: BDD nodes are shared,
+ * so an AP node may also be held by the prefix cache or by a rule, and the
+ * count the PPM alone owns cannot be told from the count of the node.
+ * A sampled AP is only checked to be a live node.
+ */
+public class PPMAuditor {
+	private final static boolean MergeAP = Parameters.MergeAP;
+
+	public interface Alert {
+		void onViolation(String invariant, int ap);
+		
+		/**
+		 * @param uncovered - the BDD of the headers no AP holds, dereferenced after the call
+		 */
+		default void onCoverageViolation(int uncovered) {
+			Logger.logWarning("PPM audit: coverage violated, some headers are held by no AP");
+		}
+	}
+
+	private final APKeeper apk;
+	private final BDDACLWrapper bdd;
+	private final Random random = new Random(0);
+	private Alert alert;
+
+	private int[] round;
+	private int cursor;
+	private int round_version;
+	private int covered;
+
+	private long audited_aps = 0;
+	private long violations = 0;
+	private long covered_rounds = 0;
+
+	PPMAuditor(APKeeper apk, BDDACLWrapper bdd) {
+		this.apk = apk;
+		this.bdd = bdd;
+		alert = (invariant, ap) -> Logger.logWarning("PPM audit: " + invariant + " violated by AP " + ap);
+		round = null;
+		covered = BDDACLWrapper.BDDFalse;
+	}
+
+	public void setAlert(Alert alert) {
+		this.alert = alert;
+	}
+
+	/**
+	 * audit the next samples of the current round
+	 * @param samples - the number of APs to audit
+	 */
+	public void audit(int samples) {
+		IntHashSet aps = apk.getAPSet();
+		if (round == null || cursor >= round.length) {
+			startRound(aps);
+		}
+		for (int i = 0; i < samples && cursor < round.length; i++) {
+			int ap = round[cursor++];
+			// the AP has been split or merged since the round started
+			if (!aps.contains(ap)) continue;
+			auditAP(ap, aps);
+		}
+		if (cursor >= round.length) {
+			finishRound();
+		}
+	}
+
+	private void startRound(IntHashSet aps) {
+		bdd.deref(covered);
+		covered = BDDACLWrapper.BDDFalse;
+		round = aps.toIntArray();
+		cursor = 0;
+		round_version = apk.ppm_version;
+	}
+
+	private void finishRound() {
+		if (round_version != apk.ppm_version) return;
+		covered_rounds ++;
+		if (covered != BDDACLWrapper.BDDTrue) {
+			violations ++;
+			int uncovered = bdd.getBDD().ref(bdd.getBDD().not(covered));
+			alert.onCoverageViolation(uncovered);
+			bdd.deref(uncovered);
+		}
+	}
+
+	private void auditAP(int ap, IntHashSet aps) {
+		audited_aps ++;
+		if (ap == BDDACLWrapper.BDDFalse || !bdd.getBDD().isValid(ap)) {
+			violate("valid BDD", ap);
+			return;
+		}
+
+		if (round_version == apk.ppm_version) {
+			int new_covered = bdd.or(covered, ap);
+			bdd.deref(covered);
+			covered = new_covered;
+		}
+
+		int another = round[random.nextInt(round.length)];
+		if (another != ap && aps.contains(another)) {
+			int overlap = bdd.and(ap, another);
+			if (overlap != BDDACLWrapper.BDDFalse) {
+				violate("disjointness", ap);
+			}
+			bdd.deref(overlap);
+		}
+
+		PortVector ports = apk.ap_ports.get(ap);
+		if (ports == null) {
+			violate("ap_ports", ap);
+			return;
+		}
+		if (MergeAP) {
+			IntHashSet same_ports = apk.ports_aps.get(ports);
+			if (same_ports == null || !same_ports.contains(ap)) {
+				violate("ports_aps", ap);
+			}
+		}
+		int id = apk.ap_registry.idOf(ap);
+		for (int element_id = 0; element_id < ports.size(); element_id++) {
+			if (apk.lazy_elements[element_id]) {
+				if (id < 0 || !apk.getPortBits(element_id, ports.get(element_id)).get(id)) {
+					violate("port AP bits", ap);
+					break;
+				}
+				continue;
+			}
+			Element e = apk.id_element.get(element_id);
+			IntHashSet port_aps = e.getPortAPs(apk.getPortName(element_id, ports.get(element_id)));
+			if (port_aps == null || !port_aps.contains(ap)) {
+				violate("element port sets", ap);
+				break;
+			}
+		}
+	}
+
+	private void violate(String invariant, int ap) {
+		violations ++;
+		alert.onViolation(invariant, ap);
+	}
+
+	public long getAuditedAPs() {
+		return audited_aps;
+	}
+
+	public long getViolations() {
+		return violations;
+	}
+
+	public long getCoveredRounds() {
+		return covered_rounds;
+	}
+}
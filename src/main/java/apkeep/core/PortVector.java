@@ -0,0 +1,86 @@
+package apkeep.core;
+
+import java.util.Arrays;
+
+/**
+ * The ports that hold one AP, one interned port id per element.
+ * Vectors are immutable and may be shared by several APs, the hash is
+ * cached and updated incrementally when one position changes.
+ * Vectors are hash-consed by the PortVectorTable of their APKeeper,
+ * so equal vectors are the same object.
+ */
+public class PortVector {
+	private final int[] ports;
+	private final int hash;
+	// bookkeeping of the PortVectorTable
+	int holders;
+	PortVector next;
+
+	PortVector(int[] ports) {
+		this.ports = ports;
+		int h = 0;
+		for (int i = 0; i < ports.length; i++) {
+			h += slotHash(i, ports[i]);
+		}
+		hash = h;
+	}
+
+	private PortVector(int[] ports, int hash) {
+		this.ports = ports;
+		this.hash = hash;
+	}
+
+	private static int slotHash(int index, int port) {
+		int h = (index * 0x9E3779B9) ^ (port * 0x85EBCA6B);
+		return h ^ (h >>> 15);
+	}
+
+	public int get(int element_id) {
+		return ports[element_id];
+	}
+
+	public int size() {
+		return ports.length;
+	}
+
+	int hashWith(int element_id, int port) {
+		return hash - slotHash(element_id, ports[element_id]) + slotHash(element_id, port);
+	}
+
+	PortVector with(int element_id, int port, int new_hash) {
+		int[] new_ports = ports.clone();
+		new_ports[element_id] = port;
+		return new PortVector(new_ports, new_hash);
+	}
+
+	boolean sameAs(PortVector another) {
+		return hash == another.hash && Arrays.equals(ports, another.ports);
+	}
+
+	/**
+	 * @return whether this vector equals base with port at element_id, without building it
+	 */
+	boolean sameAs(PortVector base, int element_id, int port) {
+		if (ports.length != base.ports.length || ports[element_id] != port) return false;
+		for (int i = 0; i < ports.length; i++) {
+			if (i != element_id && ports[i] != base.ports[i]) return false;
+		}
+		return true;
+	}
+
+	@Override
+	public int hashCode() {
+		return hash;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		// interned, see PortVectorTable
+		return this == o;
+	}
+
+	@Override
+	public String toString() {
+		return Arrays.toString(ports);
+	}
+}
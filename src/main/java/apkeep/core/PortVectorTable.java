@@ -0,0 +1,92 @@
+package apkeep.core;
+
+/**
+ * The port vectors held by APs, hash-consed so that equal vectors are
+ * one object and comparing vectors is a reference check.
+ * A vector is counted by the APs holding it and dropped with its last AP.
+ */
+class PortVectorTable {
+	private PortVector[] buckets;
+	private int size;
+
+	PortVectorTable() {
+		buckets = new PortVector[64];
+		size = 0;
+	}
+
+	/**
+	 * @return the vector of the given ports, taking over the array if it is new
+	 */
+	PortVector intern(int[] ports) {
+		PortVector vector = new PortVector(ports);
+		for (PortVector v = buckets[indexOf(vector.hashCode())]; v != null; v = v.next) {
+			if (v.sameAs(vector)) return v;
+		}
+		insert(vector);
+		return vector;
+	}
+
+	/**
+	 * @return the vector equal to base except at element_id, cloning base only if none is held
+	 */
+	PortVector with(PortVector base, int element_id, int port) {
+		if (base.get(element_id) == port) return base;
+		int hash = base.hashWith(element_id, port);
+		for (PortVector v = buckets[indexOf(hash)]; v != null; v = v.next) {
+			if (v.hashCode() == hash && v.sameAs(base, element_id, port)) return v;
+		}
+		PortVector vector = base.with(element_id, port, hash);
+		insert(vector);
+		return vector;
+	}
+
+	void hold(PortVector vector) {
+		vector.holders++;
+	}
+
+	void release(PortVector vector) {
+		if (--vector.holders > 0) return;
+		int index = indexOf(vector.hashCode());
+		if (buckets[index] == vector) {
+			buckets[index] = vector.next;
+		}
+		else {
+			PortVector prev = buckets[index];
+			while (prev != null && prev.next != vector) prev = prev.next;
+			if (prev == null) return;
+			prev.next = vector.next;
+		}
+		vector.next = null;
+		size--;
+	}
+
+	int size() {
+		return size;
+	}
+
+	private void insert(PortVector vector) {
+		if (size >= buckets.length - (buckets.length >>> 2)) resize();
+		int index = indexOf(vector.hashCode());
+		vector.next = buckets[index];
+		buckets[index] = vector;
+		size++;
+	}
+
+	private void resize() {
+		PortVector[] old = buckets;
+		buckets = new PortVector[old.length << 1];
+		for (PortVector head : old) {
+			while (head != null) {
+				PortVector next = head.next;
+				int index = indexOf(head.hashCode());
+				head.next = buckets[index];
+				buckets[index] = head;
+				head = next;
+			}
+		}
+	}
+
+	private int indexOf(int hash) {
+		return (hash ^ (hash >>> 16)) & (buckets.length - 1);
+	}
+}
@@ -1,24 +1,25 @@
 package apkeep.elements;
 
 import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 
 import apkeep.core.ChangeItem;
 import apkeep.rules.FilterRule;
 import apkeep.rules.Rule;
+import apkeep.utils.IntHashSet;
 import apkeep.utils.Logger;
+import apkeep.utils.RuleList;
 import common.ACLRule;
 import common.BDDACLWrapper;
 
 public class ACLElement extends Element {
 	
-	private LinkedList<Rule> acl_rule;
+	private RuleList acl_rule;
 	
 	public ACLElement(String ename) {
 		super(ename);
-		acl_rule = new LinkedList<>();
+		acl_rule = new RuleList();
 	}
 
 	@Override
@@ -29,13 +30,13 @@ public class ACLElement extends Element {
 		
 		// initialize the AP set for port deny
 		String deny_port = "deny";
-		HashSet<Integer> alltrue = new HashSet<Integer>();
+		IntHashSet alltrue = new IntHashSet();
 		alltrue.add(BDDACLWrapper.BDDTrue);
 		port_aps_raw.put(deny_port, alltrue);
 		
 		// initialize the AP set for port permit
 		String permit_port = "permit";
-		HashSet<Integer> allfalse = new HashSet<Integer>();
+		IntHashSet allfalse = new IntHashSet();
 		port_aps_raw.put(permit_port, allfalse);
 	}
 
@@ -51,42 +52,65 @@ public class ACLElement extends Element {
 	@Override
 	public List<ChangeItem> insertOneRule(Rule rule) throws Exception {
 		List<ChangeItem> change_set = identifyChangesInsert(rule, acl_rule);
-		port_aps_raw.putIfAbsent(rule.getPort(), new HashSet<Integer>());
+		port_aps_raw.putIfAbsent(rule.getPort(), new IntHashSet());
 		return change_set;
 	}
 
+	/**
+	 * insert a whole ACL at once: the hit BDDs of all rules are recomputed 
+	 * top-down in one pass, and the packets changing ports are reported 
+	 * as one change per pair of ports
+	 * @param rules - the encoded rules, in the order they would be inserted one by one
+	 */
+	public List<ChangeItem> insertRules(List<Rule> rules) throws Exception {
+		if (rules.isEmpty()) return new ArrayList<ChangeItem>();
+		
+		Map<String, Integer> old_port_bdds = getPortPredicates(acl_rule);
+		
+		List<Rule> new_rules = sortInsertedRules(rules);
+		RuleList merged_rules = new RuleList();
+		int index = 0;
+		for (Rule item : acl_rule) {
+			while (index < new_rules.size() && new_rules.get(index).getPriority() >= item.getPriority()) {
+				merged_rules.add(new_rules.get(index++));
+			}
+			merged_rules.add(item);
+		}
+		while (index < new_rules.size()) {
+			merged_rules.add(new_rules.get(index++));
+		}
+		acl_rule = merged_rules;
+		
+		computeHits(acl_rule);
+		for (Rule item : new_rules) {
+			port_aps_raw.putIfAbsent(item.getPort(), new IntHashSet());
+		}
+		
+		return identifyChangesBulk(old_port_bdds, getPortPredicates(acl_rule));
+	}
+
 	@Override
 	public List<ChangeItem> removeOneRule(Rule rule) throws Exception {
-		int index = findRule(rule);
-		if(index == acl_rule.size()) {
+		Rule rule_to_remove = acl_rule.find(rule);
+		if(rule_to_remove == null) {
 			Logger.logInfo("Rule not found " + rule.toString());
 			return new ArrayList<ChangeItem>();
 		}
-		Rule rule_to_remove = acl_rule.get(index);
 		// remove if rule hits no packets
 		if(rule_to_remove.getHit_bdd() == BDDACLWrapper.BDDFalse) {
-			removeRule(index);
+			removeRule(rule_to_remove);
 			Logger.logInfo("hidden rule deleted");
 			return new ArrayList<ChangeItem>();
 		}
 		
 		List<ChangeItem> change_set = identifyChangesRemove(rule_to_remove, acl_rule);
-		removeRule(index);
+		removeRule(rule_to_remove);
 		return change_set;
 	}
 
-	private int findRule(Rule rule) {
-		int index = 0;
-		for(Rule r : acl_rule) {
-			if(r.equals(rule)) return index;
-			index++;
-		}
-		return index;
-	}
-	
-	private void removeRule(int index) {
-		bdd.deref(acl_rule.get(index).getMatch_bdd());
-		acl_rule.remove(index);
+	private void removeRule(Rule rule) {
+		bdd.deref(rule.getMatch_bdd());
+		acl_rule.remove(rule);
 	}
 	@Override
 	protected int tryMergeIfNATElement(int delta) {
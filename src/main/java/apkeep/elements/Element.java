@@ -1,32 +1,43 @@
 package apkeep.elements;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
 import apkeep.core.APKeeper;
+import apkeep.core.APRegistry;
 import apkeep.core.ChangeItem;
 import apkeep.exception.APNotFoundException;
 import apkeep.exception.APSetNotFoundException;
 import apkeep.exception.BDDNotFalseException;
 import apkeep.rules.Rule;
+import apkeep.utils.IntHashSet;
+import apkeep.utils.IntHashSet.IntIterator;
 import apkeep.utils.Logger;
+import apkeep.utils.Parameters;
+import apkeep.utils.RuleList;
 import common.BDDACLWrapper;
 import common.PositionTuple;
 
 public abstract class Element {
 	
+	// below this size, a port AP set is scanned without looking up the AP index
+	private final static int INDEXED_SCAN_THRESHOLD = Parameters.INDEXED_SCAN_THRESHOLD;
+	
 	protected String name;
 	
 	protected static BDDACLWrapper bdd;
 	protected APKeeper apk;
+	protected int element_id;
 	
-	protected Map<String, Set<Integer>> port_aps_raw;
+	protected Map<String, IntHashSet> port_aps_raw;
 	
 	public Element(String ename) {
 		name = ename;
@@ -40,7 +51,7 @@ public abstract class Element {
 	
 	public void setAPC(APKeeper theapk) {
 		apk = theapk;
-		apk.addElement(name, this);
+		element_id = apk.addElement(name, this);
 	}
 	
 	public abstract void initialize();
@@ -54,14 +65,18 @@ public abstract class Element {
 		return name;
 	}
 	
-	protected List<ChangeItem> identifyChangesInsert(Rule rule, ArrayList<Rule> affected_rules) throws Exception {
+	/**
+	 * @param affected_rules - every rule of higher priority than the inserted one 
+	 * 		  comes before the others, which come in decreasing priority
+	 */
+	protected List<ChangeItem> identifyChangesInsert(Rule rule, Iterator<Rule> affected_rules) throws Exception {
 		// set bdd for the inserted rule
 		List<ChangeItem> change_set = new ArrayList<>();
 		
 		int hit_bdd = bdd.ref(rule.getMatch_bdd());
 		int bdd_to_change = BDDACLWrapper.BDDFalse;
 		boolean inserted = false;
-		Iterator<Rule> it2 = affected_rules.iterator();
+		Iterator<Rule> it2 = affected_rules;
 
 		while (it2.hasNext()) {
 			Rule item = it2.next();
@@ -101,7 +116,11 @@ public abstract class Element {
 		
 		return change_set;
 	}
-	protected List<ChangeItem> identifyChangesInsert(Rule rule, LinkedList<Rule> affected_rules) throws Exception {
+	/**
+	 * the rule is linked into the list right before the first rule 
+	 * of lower or equal priority
+	 */
+	protected List<ChangeItem> identifyChangesInsert(Rule rule, RuleList affected_rules) throws Exception {
 		// set bdd for the inserted rule
 		List<ChangeItem> change_set = new ArrayList<>();
 		
@@ -109,18 +128,21 @@ public abstract class Element {
 		int bdd_to_change = BDDACLWrapper.BDDFalse;
 		Rule default_rule = affected_rules.getLast();
 		boolean inserted = false;
+		boolean linked = false;
 
-		int cur_position = 0;
-		Iterator<Rule> it2 = affected_rules.iterator();
+		RuleList.RuleIterator it2 = affected_rules.iterator();
 		while (it2.hasNext()) {
 			Rule item = it2.next();
 			if (item.getPriority() > rule.getPriority()) {
 				if (hit_bdd != BDDACLWrapper.BDDFalse) {
 					hit_bdd = bdd.diffTo(hit_bdd, item.getMatch_bdd());
 				}
-				cur_position++;
 			}
 			else {
+				if(!linked) {
+					it2.insertBefore(rule);
+					linked = true;
+				}
 				if(!inserted) {
 					// fast check whether the default rule is the only rule affected
 					int temp = bdd.diff(hit_bdd, default_rule.getHit_bdd());
@@ -160,17 +182,22 @@ public abstract class Element {
 		}
 		
 		rule.setHit_bdd(hit_bdd);
-		affected_rules.add(cur_position, rule);
+		if (!linked) {
+			affected_rules.add(rule);
+		}
 		
 		return change_set;
 	}
 	
-	protected List<ChangeItem> identifyChangesRemove(Rule rule, ArrayList<Rule> affected_rules) throws Exception{
+	/**
+	 * @param affected_rules - the rules of lower priority than the removed one 
+	 * 		  come in decreasing priority, the removed rule itself is skipped
+	 */
+	protected List<ChangeItem> identifyChangesRemove(Rule rule, Iterator<Rule> affected_rules) throws Exception{
 		ArrayList<ChangeItem> change_set = new ArrayList<ChangeItem>();
-		affected_rules.remove(rule);
 		
 		int hit_bdd = bdd.ref(rule.getHit_bdd());
-		Iterator<Rule> it2 = affected_rules.iterator();
+		Iterator<Rule> it2 = affected_rules;
 		while (it2.hasNext() && hit_bdd != BDDACLWrapper.BDDFalse){
 			Rule item = it2.next();
 			if (item.getPriority() >= rule.getPriority()){
@@ -196,7 +223,7 @@ public abstract class Element {
 		return change_set;
 	}
 	
-	protected List<ChangeItem> identifyChangesRemove(Rule rule, LinkedList<Rule> affected_rules) throws Exception {
+	protected List<ChangeItem> identifyChangesRemove(Rule rule, RuleList affected_rules) throws Exception {
 		List<ChangeItem> change_set = new ArrayList<ChangeItem>();
 		int hit_bdd = bdd.ref(rule.getHit_bdd());
 		
@@ -226,17 +253,126 @@ public abstract class Element {
 		return change_set;
 	}
 
+	/**
+	 * recompute the hit BDDs top-down: the hit BDD of a rule is its match BDD 
+	 * minus the match BDDs of the rules before it
+	 * @param rules - the rules of the element in decreasing priority
+	 */
+	protected void computeHits(Iterable<Rule> rules) {
+		int covered = BDDACLWrapper.BDDFalse;
+		for (Rule item : rules) {
+			int hit_bdd = bdd.diff(item.getMatch_bdd(), covered);
+			bdd.deref(item.getHit_bdd());
+			item.setHit_bdd(hit_bdd);
+			covered = bdd.orTo(covered, item.getMatch_bdd());
+		}
+		bdd.deref(covered);
+	}
+	
+	/**
+	 * @return the union of the hit BDDs of the rules of each port
+	 */
+	protected Map<String, Integer> getPortPredicates(Iterable<Rule> rules) {
+		Map<String, Integer> port_bdds = new HashMap<>();
+		for (Rule item : rules) {
+			if (item.getHit_bdd() == BDDACLWrapper.BDDFalse) continue;
+			Integer port_bdd = port_bdds.get(item.getPort());
+			if (port_bdd == null) {
+				port_bdds.put(item.getPort(), bdd.ref(item.getHit_bdd()));
+			}
+			else {
+				port_bdds.put(item.getPort(), bdd.orTo(port_bdd, item.getHit_bdd()));
+			}
+		}
+		return port_bdds;
+	}
+	
+	/**
+	 * the packets changing ports between two sets of port predicates,
+	 * one change per pair of ports, the port predicates are dereferenced
+	 */
+	protected List<ChangeItem> identifyChangesBulk(Map<String, Integer> old_port_bdds, 
+			Map<String, Integer> new_port_bdds) {
+		List<ChangeItem> change_set = new ArrayList<>();
+		for (Map.Entry<String, Integer> from : old_port_bdds.entrySet()) {
+			for (Map.Entry<String, Integer> to : new_port_bdds.entrySet()) {
+				if (from.getKey().equals(to.getKey())) continue;
+				int delta = bdd.and(from.getValue(), to.getValue());
+				if (delta == BDDACLWrapper.BDDFalse) continue;
+				change_set.add(new ChangeItem(from.getKey(), to.getKey(), delta));
+			}
+		}
+		for (int port_bdd : old_port_bdds.values()) {
+			bdd.deref(port_bdd);
+		}
+		for (int port_bdd : new_port_bdds.values()) {
+			bdd.deref(port_bdd);
+		}
+		return change_set;
+	}
+	
+	/**
+	 * order the rules of a bulk insertion as if they were inserted one by one:
+	 * in decreasing priority, a later rule before an earlier one of equal priority
+	 */
+	protected static List<Rule> sortInsertedRules(List<Rule> rules) {
+		List<Rule> sorted_rules = new ArrayList<>(rules);
+		Collections.reverse(sorted_rules);
+		sorted_rules.sort((r1, r2) -> Integer.compare(r2.getPriority(), r1.getPriority()));
+		return sorted_rules;
+	}
+
+	/**
+	 * merge the changes between the same pair of ports into one change,
+	 * so that an AP covered by several deltas of one pair is transferred whole 
+	 * instead of being split and transferred piece by piece;
+	 * the changes are grouped by their from port, in the order they first appear
+	 * @param merged_changes - the changes created by merging, 
+	 * 		  whose deltas are to be dereferenced by the caller
+	 */
+	protected List<ChangeItem> coalesceChanges(List<ChangeItem> change_set, List<ChangeItem> merged_changes) {
+		if (change_set.size() < 2) return change_set;
+		
+		Map<String, Map<String, ChangeItem>> port_changes = new LinkedHashMap<>();
+		int merged_num = 0;
+		for (ChangeItem item : change_set) {
+			Map<String, ChangeItem> to_changes = 
+					port_changes.computeIfAbsent(item.getFrom_port(), k -> new LinkedHashMap<>());
+			ChangeItem another = to_changes.get(item.getTo_port());
+			if (another == null) {
+				to_changes.put(item.getTo_port(), item);
+				continue;
+			}
+			merged_num ++;
+			int delta = bdd.or(another.getDelta(), item.getDelta());
+			ChangeItem merged = new ChangeItem(item.getFrom_port(), item.getTo_port(), delta);
+			if (merged_changes.remove(another)) {
+				bdd.deref(another.getDelta());
+			}
+			merged_changes.add(merged);
+			to_changes.put(item.getTo_port(), merged);
+		}
+		if (merged_num == 0) return change_set;
+		
+		List<ChangeItem> coalesced = new ArrayList<>(change_set.size() - merged_num);
+		for (Map<String, ChangeItem> to_changes : port_changes.values()) {
+			coalesced.addAll(to_changes.values());
+		}
+		return coalesced;
+	}
+
 	public Set<Integer> updatePortPredicateMap(List<ChangeItem> change_set) throws Exception{
-		HashSet<Integer> moved_aps = new HashSet<Integer>();
+		IntHashSet moved_aps = new IntHashSet();
 		if(change_set.isEmpty()) return moved_aps;
-		for(ChangeItem item : change_set) {
+		List<ChangeItem> merged_changes = new ArrayList<>();
+		for(ChangeItem item : coalesceChanges(change_set, merged_changes)) {
 			
 			String from_port = item.getFrom_port();
 			String to_port = item.getTo_port();
 			int delta = bdd.getBDD().ref(item.getDelta());
 			
 			// fast track: delta is one AP kept by from_port
-			if(port_aps_raw.get(from_port).contains(delta)) {
+			if(portAPs(from_port).contains(delta)) {
 				transferOneAP(from_port, to_port, delta);
 				int merged_ap = tryMergeIfNATElement(delta);
 				if (merged_ap != delta) {
@@ -253,7 +389,7 @@ public abstract class Element {
 			}
 			
 			// split AP when intersect
-			Set<Integer> apset = new HashSet<Integer>(port_aps_raw.get(from_port));
+			int[] apset = getCandidateAPs(from_port, delta);
 			for(int ap : apset) {
 				int intersect = bdd.and(delta, ap);
 				if(intersect != BDDACLWrapper.BDDFalse) {
@@ -294,13 +430,38 @@ public abstract class Element {
 			}
 		}
 		
+		for(ChangeItem item : merged_changes) {
+			bdd.deref(item.getDelta());
+		}
+		
 		updateRewriteTableIfPresent();
 		return moved_aps;
 	}
 
+	/*
+	 * the APs of the port that may overlap delta
+	 */
+	private int[] getCandidateAPs(String port, int delta) {
+		IntHashSet port_aps = portAPs(port);
+		if (port_aps.size() > INDEXED_SCAN_THRESHOLD) {
+			IntHashSet candidates = apk.getCandidateAPs(delta);
+			if (candidates.size() < port_aps.size()) {
+				int[] apset = new int[candidates.size()];
+				int size = 0;
+				IntIterator it = candidates.intIterator();
+				while (it.hasNext()) {
+					int ap = it.nextInt();
+					if (port_aps.contains(ap)) apset[size++] = ap;
+				}
+				return Arrays.copyOf(apset, size);
+			}
+		}
+		return port_aps.toIntArray();
+	}
+
 	protected void transferOneAP(String from_port, String to_port, int delta) {
-		port_aps_raw.get(from_port).remove(delta);
-		port_aps_raw.get(to_port).add(delta);
+		portAPs(from_port).remove(delta);
+		portAPs(to_port).add(delta);
 		
 		// update the AP edge reference		 
 		try {
@@ -311,7 +472,7 @@ public abstract class Element {
 	}
 	
 	public void updateAPSplit(String portname, int origin, int parta, int partb) throws Exception {
-		Set<Integer> apset = port_aps_raw.get(portname);
+		IntHashSet apset = port_aps_raw.get(portname);
 		if(!apset.contains(origin)) {
 			throw new APNotFoundException(origin);
 		}
@@ -321,7 +482,7 @@ public abstract class Element {
 	}
 	
 	public void updateAPSetMerge(String port, int merged_ap, int ap1, int ap2) throws Exception {
-		Set<Integer> apset = port_aps_raw.get(port);
+		IntHashSet apset = port_aps_raw.get(port);
 		if(!apset.contains(ap1)) {
 			throw new APNotFoundException(ap1);
 		}
@@ -333,8 +494,8 @@ public abstract class Element {
 		apset.add(merged_ap);
 	}
 	
-	public void updateAPSetMergeBatch(String port, int merged_ap, HashSet<Integer> aps) throws Exception {
-		Set<Integer> apset = port_aps_raw.get(port);
+	public void updateAPSetMergeBatch(String port, int merged_ap, IntHashSet aps) throws Exception {
+		IntHashSet apset = port_aps_raw.get(port);
 		if(!apset.containsAll(aps)) {
 			throw new APSetNotFoundException(aps);
 		}
@@ -351,17 +512,47 @@ public abstract class Element {
 		return port_aps_raw.keySet();
 	}
 	
-	public Set<Integer> getPortAPs(String port){
-		return port_aps_raw.get(port);
+	public IntHashSet getPortAPs(String port){
+		return portAPs(port);
 	}
 	
-	public HashSet<Integer> forwardAPs(String port, Set<Integer> aps){
-		HashSet<Integer> new_aps = new HashSet<>(aps);
-		if(new_aps.remove(BDDACLWrapper.BDDTrue)) {
-			return new HashSet<>(getPortAPs(port));
+	/*
+	 * in the columnar PPM mode, the port AP sets lag behind the splits and
+	 * merges done by APKeeper until they are read
+	 */
+	protected IntHashSet portAPs(String port) {
+		try {
+			apk.syncElement(element_id);
+		} catch (Exception e) {
+			throw new IllegalStateException("cannot replay the AP updates of " + name, e);
 		}
-		new_aps.retainAll(getPortAPs(port));
-		return new_aps;
+		return port_aps_raw.get(port);
+	}
+	
+	/**
+	 * @return the ids of the APs forwarded to the port, not to be modified
+	 */
+	public BitSet getPortAPBits(String port) {
+		return apk.getPortAPBits(element_id, port);
+	}
+	
+	/**
+	 * @return the port the AP is forwarded to, read from the port vector of the AP
+	 */
+	public String getAPPort(int ap) {
+		return apk.getAPPort(element_id, ap);
+	}
+	
+	public APRegistry getAPRegistry() {
+		return apk.getAPRegistry();
+	}
+	
+	/**
+	 * intersect the ids of the APs with the ones forwarded to the port, in place
+	 * @param aps - ids of the APs given by the AP registry
+	 */
+	public void forwardAPs(String port, BitSet aps) {
+		aps.and(getPortAPBits(port));
 	}
 
 	public static boolean hasOverlap(Set<Integer> aps1, Set<Integer> aps2) {
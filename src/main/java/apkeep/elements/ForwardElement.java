@@ -1,9 +1,10 @@
 package apkeep.elements;
 
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -11,6 +12,8 @@ import java.util.Set;
 import apkeep.core.ChangeItem;
 import apkeep.rules.ForwardingRule;
 import apkeep.rules.Rule;
+import apkeep.utils.AffectedRuleIterator;
+import apkeep.utils.IntHashSet;
 import apkeep.utils.Logger;
 import apkeep.utils.TrieTree;
 import apkeep.utils.TrieTreeNode;
@@ -20,17 +23,33 @@ public class ForwardElement extends Element {
 	
 	TrieTree trie;
 	Map<String, Set<String>> vlan_ports;
+	
+	/*
+	 * the trie walks the affected rules in priority order 
+	 * only while every priority is the prefix length
+	 */
+	boolean prefix_priority;
+	AffectedRuleIterator affected_rules;
+	
+	/*
+	 * the installed rules in the order their hits were computed by the last
+	 * bulk insertion, dropped once a single rule is inserted or removed
+	 */
+	List<Rule> bulk_order;
 
 	public ForwardElement(String ename) {
 		super(ename);
 		trie = new TrieTree();
 		vlan_ports = new HashMap<>();
+		prefix_priority = true;
+		affected_rules = new AffectedRuleIterator();
+		bulk_order = null;
 	}
 
 	@Override
 	public void initialize() {
 		String default_port = "default";
-		HashSet<Integer> alltrue = new HashSet<Integer>();
+		IntHashSet alltrue = new IntHashSet();
 		alltrue.add(BDDACLWrapper.BDDTrue);
 		port_aps_raw.put(default_port, alltrue);
 	}
@@ -65,33 +84,93 @@ public class ForwardElement extends Element {
 		// duplicate rules
 		if (node.hasRule(rule)) {
 			Logger.logInfo("duplicate rule " + rule.toString());
+			apk.releasePrefixBDD(rule.getMatch_bdd());
 			return new ArrayList<ChangeItem>();
 		}
 		
+		if (rule.getPriority() != ((ForwardingRule) rule).getMaskLen()) {
+			prefix_priority = false;
+		}
+		
 		// get the affected rules
-		ArrayList<Rule> affected_rules = getAffectedRules(node);
-		List<ChangeItem> change_set = identifyChangesInsert(rule, affected_rules);
+		Iterator<Rule> affected = prefix_priority ? affected_rules.resetForInsert(node) : getAffectedRules(node);
+		List<ChangeItem> change_set = identifyChangesInsert(rule, affected);
 		
 		// check whether the forwarding port exists, if not create it, 
 		// and initialize the AP set of the port to empty
-		port_aps_raw.putIfAbsent(rule.getPort(), new HashSet<Integer>());
+		port_aps_raw.putIfAbsent(rule.getPort(), new IntHashSet());
 		
-		// insert the rule
+		// insert the rule, which keeps the reference to its prefix BDD
 		node.addRule(rule);
+		bulk_order = null;
 		return change_set;
 	}
 
+	/**
+	 * insert a whole forwarding table at once: the rules are put into the trie, 
+	 * the hit BDDs of all rules are recomputed top-down in one pass, 
+	 * and the packets changing ports are reported as one change per pair of ports
+	 * @param rules - the encoded rules, in the order they would be inserted one by one
+	 */
+	public List<ChangeItem> insertRules(List<Rule> rules) throws Exception {
+		List<Rule> old_rules = bulk_order;
+		if (old_rules == null) {
+			old_rules = trie.getAllRules();
+			old_rules.sort((r1, r2) -> Integer.compare(r2.getPriority(), r1.getPriority()));
+		}
+		Map<String, Integer> old_port_bdds = getPortPredicates(old_rules);
+		
+		List<Rule> new_rules = new ArrayList<>();
+		for (Rule rule : rules) {
+			TrieTreeNode node = trie.insert((ForwardingRule) rule);
+			if (node.hasRule(rule)) {
+				Logger.logInfo("duplicate rule " + rule.toString());
+				apk.releasePrefixBDD(rule.getMatch_bdd());
+				continue;
+			}
+			if (rule.getPriority() != ((ForwardingRule) rule).getMaskLen()) {
+				prefix_priority = false;
+			}
+			port_aps_raw.putIfAbsent(rule.getPort(), new IntHashSet());
+			node.addRule(rule);
+			new_rules.add(rule);
+		}
+		if (new_rules.isEmpty()) {
+			return identifyChangesBulk(old_port_bdds, new HashMap<>());
+		}
+		
+		// the inserted rules come before the existing rules of equal priority
+		List<Rule> inserted_rules = sortInsertedRules(new_rules);
+		List<Rule> sorted_rules = new ArrayList<>(inserted_rules.size() + old_rules.size());
+		int index = 0;
+		for (Rule item : old_rules) {
+			while (index < inserted_rules.size() && inserted_rules.get(index).getPriority() >= item.getPriority()) {
+				sorted_rules.add(inserted_rules.get(index++));
+			}
+			sorted_rules.add(item);
+		}
+		while (index < inserted_rules.size()) {
+			sorted_rules.add(inserted_rules.get(index++));
+		}
+		computeHits(sorted_rules);
+		bulk_order = sorted_rules;
+		
+		return identifyChangesBulk(old_port_bdds, getPortPredicates(sorted_rules));
+	}
+
 	@Override
 	public List<ChangeItem> removeOneRule(Rule rule) throws Exception {
 		// find the node in the trie
 		TrieTreeNode node = trie.search((ForwardingRule) rule);
+		Rule rule_to_remove = node == null ? null : node.findRule(rule);
+		// the rule to remove was only encoded for the lookup
+		apk.releasePrefixBDD(rule.getMatch_bdd());
 		if(node == null) {
 			Logger.logInfo("Node not found " + rule.toString());
 			return new ArrayList<ChangeItem>();
 		}
 		
 		// find the rule in the node
-		Rule rule_to_remove = node.findRule(rule);
 		if(rule_to_remove == null) {
 			Logger.logInfo("Rule not found " + rule.toString());
 			return new ArrayList<ChangeItem>();
@@ -105,28 +184,32 @@ public class ForwardElement extends Element {
 		}
 		
 		// get the affected rules
-		ArrayList<Rule> affected_rules = getAffectedRules(node);
-		List<ChangeItem> change_set = identifyChangesRemove(rule_to_remove, affected_rules);
+		Iterator<Rule> affected = prefix_priority ? 
+				affected_rules.resetForRemove(node, rule_to_remove.getPriority()) : getAffectedRules(node);
+		List<ChangeItem> change_set = identifyChangesRemove(rule_to_remove, affected);
 		
 		removeRule(node, rule_to_remove);
 		return change_set;
 	}
 	
-	private ArrayList<Rule> getAffectedRules(TrieTreeNode node) {
-		ArrayList<Rule> affected_rules = new ArrayList<>();
-		affected_rules.addAll(node.getDescendantRules());
-		affected_rules.addAll(node.getAncestorRules());
-		affected_rules.addAll(node.getRules());
-		Arrays.sort(affected_rules.toArray());
-		return affected_rules;
+	/**
+	 * the affected rules sorted by priority, 
+	 * used once some priority is not the prefix length
+	 */
+	private Iterator<Rule> getAffectedRules(TrieTreeNode node) {
+		ArrayList<Rule> rules = new ArrayList<>();
+		rules.addAll(node.getDescendantRules());
+		rules.addAll(node.getAncestorRules());
+		rules.addAll(node.getRules());
+		Collections.sort(rules);
+		return rules.iterator();
 	}
 	
 	private void removeRule(TrieTreeNode node, Rule rule) {
 		node.removeRule(rule);
+		bulk_order = null;
+		apk.releasePrefixBDD(rule.getMatch_bdd());
 		if(node.noRules()) {
-			ForwardingRule r = (ForwardingRule) rule;
-			apk.removePrefixBDD(r.getDstIP(), r.getMaskLen());
-			bdd.deref(rule.getMatch_bdd());
         	node.delete();
 		}
 	}
@@ -1,33 +1,78 @@
 package apkeep.elements;
 
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.Set;
 
+import apkeep.core.APRegistry;
 import apkeep.core.ChangeItem;
 import apkeep.exception.APNotFoundException;
 import apkeep.rules.RewriteRule;
 import apkeep.rules.Rule;
+import apkeep.utils.IntHashMap;
+import apkeep.utils.IntHashSet;
+import apkeep.utils.IntHashSet.IntIterator;
 import apkeep.utils.Logger;
+import apkeep.utils.RuleList;
 import common.BDDACLWrapper;
 import common.PositionTuple;
 import common.Utility;
 
 public class NATElement extends Element {
 
-	LinkedList<Rule> rewrite_rules;
-	HashMap<Integer, HashSet<Integer>> rewrite_table;
-	HashSet<Integer> output_aps;
+	RuleList rewrite_rules;
+	// the AP rewritten -> the APs of the rewritten packets
+	IntHashMap<IntHashSet> rewrite_table;
+	// the reverse index: the AP of rewritten packets -> the APs rewritten to it
+	IntHashMap<RewriteSources> rewrite_sources;
+	// the rewritten packets not yet expressed in APs
+	IntHashSet pending_rewrites;
 	HashMap<String, Rule> rule_map;
+	
+	/*
+	 * two APs of rewritten packets can only be merged if they are rewritten 
+	 * from the same APs, the signature sums a hash of each source AP 
+	 * so that most different source sets are told apart without comparing them
+	 */
+	private static class RewriteSources {
+		final IntHashSet aps;
+		long signature;
+		
+		RewriteSources() {
+			aps = new IntHashSet();
+			signature = 0;
+		}
+		
+		RewriteSources(RewriteSources another) {
+			aps = new IntHashSet(another.aps);
+			signature = another.signature;
+		}
+		
+		void add(int ap) {
+			if (aps.add(ap)) signature += hash(ap);
+		}
+		
+		void remove(int ap) {
+			if (aps.remove(ap)) signature -= hash(ap);
+		}
+		
+		boolean sameAs(RewriteSources another) {
+			return signature == another.signature && aps.equals(another.aps);
+		}
+		
+		private static long hash(int ap) {
+			long h = ap * 0x9E3779B97F4A7C15L;
+			return h ^ (h >>> 29);
+		}
+	}
 
 	public NATElement(String ename) {
 		super(ename);
-		rewrite_rules = new LinkedList<>();
-		rewrite_table = new HashMap<Integer, HashSet<Integer>>();
-		output_aps = new HashSet<Integer>();
+		rewrite_rules = new RuleList();
+		rewrite_table = new IntHashMap<IntHashSet>();
+		rewrite_sources = new IntHashMap<RewriteSources>();
+		pending_rewrites = new IntHashSet();
 		rule_map = new HashMap<>();
 	}
 
@@ -39,32 +84,42 @@ public class NATElement extends Element {
 		rewrite_rules.add(default_rule);
 		rule_map.put(default_rule.getPort(), default_rule);
 		
-		HashSet<Integer> alltrue = new HashSet<Integer>();
+		IntHashSet alltrue = new IntHashSet();
 		alltrue.add(BDDACLWrapper.BDDTrue);
 		port_aps_raw.put(default_rule.getPort(), alltrue);
 	}
 	
-	public HashMap<Integer, HashSet<Integer>> getRewrite_table() {
+	public IntHashMap<IntHashSet> getRewrite_table() {
 		return rewrite_table;
 	}
 	
 	@Override
-	public HashSet<Integer> forwardAPs(String port, Set<Integer> aps){
-		HashSet<Integer> new_aps = new HashSet<>(aps);
-		if(new_aps.remove(BDDACLWrapper.BDDTrue)) {
-			new_aps = new HashSet<>(getPortAPs(port));
-		}
-		else {
-			new_aps.retainAll(getPortAPs(port));
+	public void forwardAPs(String port, BitSet aps) {
+		super.forwardAPs(port, aps);
+		if (rewrite_table.isEmpty()) return;
+		
+		APRegistry registry = getAPRegistry();
+		BitSet rewrited_ids = new BitSet();
+		for (int id = aps.nextSetBit(0); id >= 0; id = aps.nextSetBit(id+1)) {
+			IntHashSet rewrited_aps = rewrite_table.get(registry.apOf(id));
+			if (rewrited_aps == null) continue;
+			aps.clear(id);
+			IntIterator it = rewrited_aps.intIterator();
+			while (it.hasNext()) {
+				rewrited_ids.set(registry.idOf(it.nextInt()));
+			}
 		}
-		return rewriteAPs(new_aps);
+		aps.or(rewrited_ids);
 	}
 	
-	public HashSet<Integer> rewriteAPs(HashSet<Integer> old_aps) {
-		HashSet<Integer> new_aps = new HashSet<Integer>();
-		for (int ap : old_aps) {
-			if (rewrite_table.containsKey(ap)) {
-				new_aps.addAll(rewrite_table.get(ap));
+	public IntHashSet rewriteAPs(IntHashSet old_aps) {
+		IntHashSet new_aps = new IntHashSet();
+		IntIterator it = old_aps.intIterator();
+		while (it.hasNext()) {
+			int ap = it.nextInt();
+			IntHashSet rewrited_aps = rewrite_table.get(ap);
+			if (rewrited_aps != null) {
+				new_aps.addAll(rewrited_aps);
 			}
 			else {
 				new_aps.add(ap);
@@ -74,37 +129,97 @@ public class NATElement extends Element {
 	}
 
 	public boolean isMergable(int ap1, int ap2) {
-		if (!output_aps.contains(ap1) && !output_aps.contains(ap2)) 
-			return true;
-		if (output_aps.contains(ap1) && !output_aps.contains(ap2)) 
-			return false;
-		if (!output_aps.contains(ap1) && output_aps.contains(ap2)) 
-			return false;
-		
-		for (HashSet<Integer> aps : rewrite_table.values()) {
-			if (aps.contains(ap1) && !aps.contains(ap2)) {
-				return false;
+		RewriteSources sources1 = rewrite_sources.get(ap1);
+		RewriteSources sources2 = rewrite_sources.get(ap2);
+		if (sources1 == null || sources2 == null) 
+			return sources1 == sources2;
+		return sources1.sameAs(sources2);
+	}
+
+	public boolean isMergable(IntHashSet aps) {
+		IntIterator it = aps.intIterator();
+		RewriteSources first = rewrite_sources.get(it.nextInt());
+		while (it.hasNext()) {
+			RewriteSources sources = rewrite_sources.get(it.nextInt());
+			if (first == null || sources == null) {
+				if (first != sources) return false;
 			}
-			if (!aps.contains(ap1) && aps.contains(ap2)) {
+			else if (!first.sameAs(sources)) {
 				return false;
 			}
 		}
 		return true;
 	}
-
-	public boolean isMergable(HashSet<Integer> aps) {
-		if(checkIntersect(aps, output_aps)) return false;
+	
+	/*
+	 * add one AP, or packets not yet expressed in APs, to the rewrite of an AP
+	 */
+	private void addRewrite(int ap, int rewrited_ap) {
+		IntHashSet rewrited_aps = rewrite_table.get(ap);
+		if (rewrited_aps == null) {
+			rewrited_aps = new IntHashSet();
+			rewrite_table.put(ap, rewrited_aps);
+		}
+		rewrited_aps.add(rewrited_ap);
 		
-		for (HashSet<Integer> rewrited_aps : rewrite_table.values()) {
-			if(checkIntersect(aps, rewrited_aps)) return false;
+		RewriteSources sources = rewrite_sources.get(rewrited_ap);
+		if (sources == null) {
+			sources = new RewriteSources();
+			rewrite_sources.put(rewrited_ap, sources);
+		}
+		sources.add(ap);
+		if (!apk.hasAP(rewrited_ap)) {
+			pending_rewrites.add(rewrited_ap);
+		}
+	}
+	
+	private void removeRewrite(int ap, int rewrited_ap) {
+		rewrite_table.get(ap).remove(rewrited_ap);
+		RewriteSources sources = rewrite_sources.get(rewrited_ap);
+		sources.remove(ap);
+		if (sources.aps.isEmpty()) {
+			rewrite_sources.remove(rewrited_ap);
 		}
-		return true;
 	}
 	
-	private boolean checkIntersect(Set<Integer> a, Set<Integer> b) {
-		Set<Integer> copy = new HashSet<Integer>(a);
-		copy.removeAll(b);
-		return !copy.equals(a) && !copy.isEmpty();
+	/*
+	 * drop the rewrite of an AP
+	 * @return the APs it was rewritten to
+	 */
+	private int[] removeRewrites(int ap) {
+		IntHashSet rewrited_aps = rewrite_table.remove(ap);
+		if (rewrited_aps == null) return new int[0];
+		int[] old_aps = rewrited_aps.toIntArray();
+		for (int rewrited_ap : old_aps) {
+			RewriteSources sources = rewrite_sources.get(rewrited_ap);
+			sources.remove(ap);
+			if (sources.aps.isEmpty()) {
+				rewrite_sources.remove(rewrited_ap);
+			}
+		}
+		return old_aps;
+	}
+	
+	/*
+	 * replace an AP of rewritten packets in the rewrite of every AP rewritten to it
+	 */
+	private void replaceRewritten(int origin, RewriteSources sources, int... new_aps) {
+		IntIterator it = sources.aps.intIterator();
+		while (it.hasNext()) {
+			IntHashSet rewrited_aps = rewrite_table.get(it.nextInt());
+			rewrited_aps.remove(origin);
+			for (int new_ap : new_aps) {
+				rewrited_aps.add(new_ap);
+			}
+		}
+		for (int i = 0; i < new_aps.length; i++) {
+			rewrite_sources.put(new_aps[i], i == 0 ? sources : new RewriteSources(sources));
+		}
+	}
+	
+	private void addRewriteOfPort(int ap, String port) {
+		RewriteRule rule = (RewriteRule) rule_map.get(port);
+		addRewrite(ap, bdd.nat(ap, rule.getField_bdd(), rule.getNew_pkt_bdd()));
 	}
 
 	@Override
@@ -126,80 +241,61 @@ public class NATElement extends Element {
 	public List<ChangeItem> insertOneRule(Rule rule) throws Exception {
 		List<ChangeItem> change_set = identifyChangesInsert(rule, rewrite_rules);
 		rule_map.put(rule.getPort(), rule);
-		port_aps_raw.putIfAbsent(rule.getPort(), new HashSet<Integer>());
+		port_aps_raw.putIfAbsent(rule.getPort(), new IntHashSet());
 		return change_set;
 	}
 
 	@Override
 	public List<ChangeItem> removeOneRule(Rule rule) throws Exception {
-		int index = findRule(rule);
-		if(index == rewrite_rules.size()) {
+		Rule rule_to_remove = rewrite_rules.find(rule);
+		// the rule to remove was only encoded for the lookup
+		apk.releasePrefixBDD(rule.getMatch_bdd());
+		apk.releasePrefixBDD(((RewriteRule) rule).getNew_pkt_bdd());
+		if(rule_to_remove == null) {
 			Logger.logInfo("Rule not found " + rule.toString());
 			return new ArrayList<ChangeItem>();
 		}
-		Rule rule_to_remove = rewrite_rules.get(index);
 		// remove if rule hits no packets
 		if(rule_to_remove.getHit_bdd() == BDDACLWrapper.BDDFalse) {
-			removeRule(index);
+			removeRule(rule_to_remove);
 			Logger.logInfo("hidden rule deleted");
 			return new ArrayList<ChangeItem>();
 		}
 		
 		List<ChangeItem> change_set = identifyChangesRemove(rule_to_remove, rewrite_rules);
-		removeRule(index);
+		removeRule(rule_to_remove);
 		return change_set;
 	}
 	
-	private int findRule(Rule rule) {
-		int index = 0;
-		for(Rule r : rewrite_rules) {
-			if(r.equals(rule)) return index;
-			index++;
-		}
-		return index;
-	}
-	
-	private void removeRule(int index) {
-		bdd.deref(rewrite_rules.get(index).getMatch_bdd());
-		rewrite_rules.remove(index);
+	private void removeRule(Rule rule_to_remove) {
+		RewriteRule rule = (RewriteRule) rule_to_remove;
+		rewrite_rules.remove(rule);
+		apk.releasePrefixBDD(rule.getMatch_bdd());
+		apk.releasePrefixBDD(rule.getNew_pkt_bdd());
 	}
 	
 	@Override
 	protected void transferOneAP(String from_port, String to_port, int delta) {
-		port_aps_raw.get(from_port).remove(delta);
-		port_aps_raw.get(to_port).add(delta);
+		portAPs(from_port).remove(delta);
+		portAPs(to_port).add(delta);
 		
-		if (rewrite_table.containsKey(delta)) {
-			HashSet<Integer> old_aps = rewrite_table.get(delta);
-			output_aps.removeAll(old_aps);
-			while (true) {
-				HashSet<Integer> new_aps = new HashSet<Integer>(old_aps); 
-				for (int one_ap : new_aps) {
-					if (apk.hasAP(one_ap)) {
-						try {
-							apk.tryMergeAP(one_ap);
-						} catch (Exception e) {
-							e.printStackTrace();
-						}
-					}
+		// the APs no longer rewritten from delta may be merged back
+		for (int old_ap : removeRewrites(delta)) {
+			int ap = old_ap;
+			while (apk.hasAP(ap)) {
+				int merged_ap = ap;
+				try {
+					merged_ap = apk.tryMergeAP(ap);
+				} catch (Exception e) {
+					e.printStackTrace();
 				}
-				if (old_aps.size() == new_aps.size())
-					break;
+				if (merged_ap == ap) break;
+				ap = merged_ap;
 			}
-				
-			old_aps.clear();
-		}
-		else {
-			rewrite_table.put(delta, new HashSet<Integer>());
 		}
 		
-		if (to_port.equals("default")) {
-			rewrite_table.remove(delta);
-		}
-		else {
-			RewriteRule rule = (RewriteRule) rule_map.get(to_port);
-			int delta_rewrite = bdd.nat(delta, rule.getField_bdd(), rule.getNew_pkt_bdd());
-			rewrite_table.get(delta).add(delta_rewrite);
+		if (!to_port.equals("default")) {
+			addRewriteOfPort(delta, to_port);
 		}
 		
 		// update the AP edge reference		 
@@ -212,7 +308,7 @@ public class NATElement extends Element {
 	
 	@Override
 	public void updateAPSplit(String portname, int origin, int parta, int partb) throws Exception {
-		Set<Integer> apset = port_aps_raw.get(portname);
+		IntHashSet apset = port_aps_raw.get(portname);
 		if(!apset.contains(origin)) {
 			throw new APNotFoundException(origin);
 		}
@@ -220,40 +316,22 @@ public class NATElement extends Element {
 		apset.add(parta);
 		apset.add(partb);
 		
-		for (HashSet<Integer> aps : rewrite_table.values()) {
-			if (aps.contains(origin)) {
-				aps.remove(origin);
-				aps.add(parta);
-				aps.add(partb);
-				output_aps.remove(origin);
-				output_aps.add(parta);
-				output_aps.add(partb);
-			}
+		RewriteSources sources = rewrite_sources.remove(origin);
+		if (sources != null) {
+			replaceRewritten(origin, sources, parta, partb);
 		}
 		
 		if (!rewrite_table.containsKey(origin))
 			return;
 		// update the rewrite table
-		if (rewrite_table.get(origin) != null) {
-			output_aps.removeAll(rewrite_table.get(origin));
-		}
-		rewrite_table.remove(origin);
-		RewriteRule rule = (RewriteRule) rule_map.get(portname);
-		int parta_rewrite = bdd.nat(parta, rule.getField_bdd(), rule.getNew_pkt_bdd());
-		int partb_rewrite = bdd.nat(partb, rule.getField_bdd(), rule.getNew_pkt_bdd());
-		HashSet<Integer> parta_apset = new HashSet<Integer>();
-		parta_apset.add(parta_rewrite);
-		rewrite_table.put(parta, parta_apset);
-		output_aps.add(parta_rewrite);
-		HashSet<Integer> partb_apset = new HashSet<Integer>();
-		partb_apset.add(partb_rewrite);
-		rewrite_table.put(partb, partb_apset);
-		output_aps.add(partb_rewrite);
+		removeRewrites(origin);
+		addRewriteOfPort(parta, portname);
+		addRewriteOfPort(partb, portname);
 	}
 	
 	@Override
 	public void updateAPSetMerge(String port, int merged_ap, int ap1, int ap2) throws Exception {
-		Set<Integer> apset = port_aps_raw.get(port);
+		IntHashSet apset = port_aps_raw.get(port);
 		if(!apset.contains(ap1)) {
 			throw new APNotFoundException(ap1);
 		}
@@ -264,56 +342,102 @@ public class NATElement extends Element {
 		apset.remove(ap2);
 		apset.add(merged_ap);
 		
-		for (HashSet<Integer> aps : rewrite_table.values()) {
-			if (aps.contains(ap1) && aps.contains(ap2)) {
-				aps.remove(ap1);
-				aps.remove(ap2);
-				aps.add(merged_ap);
-				output_aps.remove(ap1);
-				output_aps.remove(ap2);
-				output_aps.add(merged_ap);
+		RewriteSources sources1 = rewrite_sources.get(ap1);
+		RewriteSources sources2 = rewrite_sources.get(ap2);
+		if (sources1 != null && sources2 != null && sources1.sameAs(sources2)) {
+			rewrite_sources.remove(ap1);
+			rewrite_sources.remove(ap2);
+			IntIterator it = sources1.aps.intIterator();
+			while (it.hasNext()) {
+				IntHashSet rewrited_aps = rewrite_table.get(it.nextInt());
+				rewrited_aps.remove(ap1);
+				rewrited_aps.remove(ap2);
+				rewrited_aps.add(merged_ap);
 			}
+			rewrite_sources.put(merged_ap, sources1);
 		}
 			
 		if (!rewrite_table.containsKey(ap1) && !rewrite_table.containsKey(ap2))
 			return;
 		
 		// update the rewrite table
-		if (rewrite_table.get(ap1) != null) {
-			output_aps.removeAll(rewrite_table.get(ap1));
+		removeRewrites(ap1);
+		removeRewrites(ap2);
+		addRewriteOfPort(merged_ap, port);
+	}
+	
+	@Override
+	public void updateAPSetMergeBatch(String port, int merged_ap, IntHashSet aps) throws Exception {
+		super.updateAPSetMergeBatch(port, merged_ap, aps);
+		
+		// the APs are mergeable, so they are rewritten from the same APs
+		int[] aparr = aps.toIntArray();
+		RewriteSources sources = rewrite_sources.get(aparr[0]);
+		if (sources != null) {
+			for (int ap : aparr) {
+				rewrite_sources.remove(ap);
+			}
+			IntIterator it = sources.aps.intIterator();
+			while (it.hasNext()) {
+				IntHashSet rewrited_aps = rewrite_table.get(it.nextInt());
+				rewrited_aps.removeAll(aps);
+				rewrited_aps.add(merged_ap);
+			}
+			rewrite_sources.put(merged_ap, sources);
 		}
-		if (rewrite_table.get(ap2) != null) {
-			output_aps.removeAll(rewrite_table.get(ap2));
+		
+		boolean rewritten = false;
+		for (int ap : aparr) {
+			if (rewrite_table.containsKey(ap)) {
+				removeRewrites(ap);
+				rewritten = true;
+			}
+		}
+		if (rewritten) {
+			addRewriteOfPort(merged_ap, port);
 		}
-			
-		rewrite_table.remove(ap1);
-		rewrite_table.remove(ap2);
-		RewriteRule rule = (RewriteRule) rule_map.get(port);
-		int merged_rewrite = bdd.nat(merged_ap, rule.getField_bdd(), rule.getNew_pkt_bdd());
-		HashSet<Integer> merged_apset = new HashSet<Integer>();
-		merged_apset.add(merged_rewrite);
-		rewrite_table.put(merged_ap, merged_apset);
-		output_aps.add(merged_rewrite);
 	}
 	
+	/**
+	 * express the pending rewritten packets in APs in one round: 
+	 * the APs are split by all of them first, then each of them is replaced 
+	 * by the APs it covers; the rewritten packets queued by the splits, 
+	 * i.e., the rewrites of the split APs, are left to the next round
+	 * @return false if no rewritten packets are pending
+	 */
 	public boolean updateRewriteTable() throws Exception {
-		HashMap<Integer, HashSet<Integer>> old_rewrite_table = new HashMap<Integer, HashSet<Integer>>(rewrite_table);
-		for (int ap : old_rewrite_table.keySet()) {
-			HashSet<Integer> rewrited_aps = rewrite_table.get(ap);
-			for (int rewrited_ap : rewrited_aps) {
-				if (!apk.hasAP(rewrited_ap)) {
-					apk.addPredicate(rewrited_ap);
-					rewrited_aps.remove(rewrited_ap);
-					output_aps.remove(rewrited_ap);
-					HashSet<Integer> new_rewited_ap = apk.getAPExp(rewrited_ap);
-					rewrited_aps.addAll(new_rewited_ap);
-					output_aps.addAll(new_rewited_ap);
-					return true;
-				}
+		if (pending_rewrites.isEmpty()) return false;
+		
+		IntHashSet rewrites = new IntHashSet(pending_rewrites.size());
+		IntIterator pending = pending_rewrites.intIterator();
+		while (pending.hasNext()) {
+			int rewrited_ap = pending.nextInt();
+			if (rewrite_sources.containsKey(rewrited_ap) && !apk.hasAP(rewrited_ap)) {
+				rewrites.add(rewrited_ap);
 			}
 		}
+		pending_rewrites.clear();
+		if (rewrites.isEmpty()) return false;
 		
-		return false;
+		int[] rewrite_arr = rewrites.toIntArray();
+		for (int rewrited_ap : rewrite_arr) {
+			apk.addPredicate(rewrited_ap);
+		}
+		for (int rewrited_ap : rewrite_arr) {
+			// the APs rewritten to these packets may have been split meanwhile
+			RewriteSources sources = rewrite_sources.remove(rewrited_ap);
+			if (sources == null) continue;
+			int[] new_rewrited_aps = apk.getAPExp(rewrited_ap).toIntArray();
+			IntIterator it = sources.aps.intIterator();
+			while (it.hasNext()) {
+				int ap = it.nextInt();
+				rewrite_table.get(ap).remove(rewrited_ap);
+				for (int new_rewrited_ap : new_rewrited_aps) {
+					addRewrite(ap, new_rewrited_ap);
+				}
+			}
+		}
+		return true;
 	}
 	
 	@Override
@@ -51,10 +51,20 @@ public class APKeep {
 	private static void parseParameters(JSONObject paras) {
 		if(paras.containsKey("NAME")) 
 			name = paras.getString("NAME");
+		if(paras.containsKey("ColumnarPPM")) 
+			Parameters.ColumnarPPM = paras.getBooleanValue("ColumnarPPM");
+		if(paras.containsKey("AdaptiveMerge")) 
+			Parameters.AdaptiveMerge = paras.getBooleanValue("AdaptiveMerge");
+		if(paras.containsKey("SnapshotLoad")) 
+			Parameters.SnapshotLoad = paras.getBooleanValue("SnapshotLoad");
+		if(paras.containsKey("PerAPCheck")) 
+			Parameters.PerAPCheck = paras.getBooleanValue("PerAPCheck");
 		if(paras.containsKey("BDD_TABLE_SIZE")) 
 			Parameters.BDD_TABLE_SIZE = paras.getIntValue("BDD_TABLE_SIZE");
 		if(paras.containsKey("GC_INTERVAL")) 
 			Parameters.GC_INTERVAL = paras.getIntValue("GC_INTERVAL");
+		if(paras.containsKey("FIELD_BDD_CACHE_SIZE")) 
+			Parameters.FIELD_BDD_CACHE_SIZE = paras.getIntValue("FIELD_BDD_CACHE_SIZE");
 		if(paras.containsKey("TOTAL_AP_THRESHOLD")) 
 			Parameters.TOTAL_AP_THRESHOLD = paras.getIntValue("TOTAL_AP_THRESHOLD");
 		if(paras.containsKey("LOW_MERGEABLE_AP_THRESHOLD")) 
@@ -63,6 +73,16 @@ public class APKeep {
 			Parameters.HIGH_MERGEABLE_AP_THRESHOLD = paras.getIntValue("HIGH_MERGEABLE_AP_THRESHOLD");
 		if(paras.containsKey("FAST_UPDATE_THRESHOLD")) 
 			Parameters.FAST_UPDATE_THRESHOLD = paras.getDoubleValue("FAST_UPDATE_THRESHOLD");
+		if(paras.containsKey("IDLE_MERGE_BUDGET")) 
+			Parameters.IDLE_MERGE_BUDGET = paras.getIntValue("IDLE_MERGE_BUDGET");
+		if(paras.containsKey("IDLE_SLOT_INTERVAL")) 
+			Parameters.IDLE_SLOT_INTERVAL = paras.getIntValue("IDLE_SLOT_INTERVAL");
+		if(paras.containsKey("MAX_PENDING_UPDATES")) 
+			Parameters.MAX_PENDING_UPDATES = paras.getIntValue("MAX_PENDING_UPDATES");
+		if(paras.containsKey("INDEXED_SCAN_THRESHOLD")) 
+			Parameters.INDEXED_SCAN_THRESHOLD = paras.getIntValue("INDEXED_SCAN_THRESHOLD");
+		if(paras.containsKey("AUDIT_SAMPLES")) 
+			Parameters.AUDIT_SAMPLES = paras.getIntValue("AUDIT_SAMPLES");
 		if(paras.containsKey("PRINT_RESULT_INTERVAL")) 
 			Parameters.PRINT_RESULT_INTERVAL = paras.getIntValue("PRINT_RESULT_INTERVAL");
 		if(paras.containsKey("WRITE_RESULT_INTERVAL")) 
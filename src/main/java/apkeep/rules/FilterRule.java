@@ -16,6 +16,10 @@ public class FilterRule extends Rule {
 	public String destinationWildcard;
 	public String destinationPortLower;
 	public String destinationPortUpper;
+	
+	// the canonical form of the rule, computed once for hashing and comparing
+	private String fingerprint;
+	private int fingerprint_hash;
 
 	public FilterRule(int match_bdd, int hit_bdd, String port, int priority) {
 		super(match_bdd, hit_bdd, priority, port);
@@ -31,6 +35,7 @@ public class FilterRule extends Rule {
 		this.destinationWildcard = null;
 		this.destinationPortLower = null;
 		this.destinationPortUpper = null;
+		setFingerprint();
 	}
 
 	public FilterRule(int match_bdd, ACLRule rule) {
@@ -47,18 +52,29 @@ public class FilterRule extends Rule {
 		this.destinationWildcard = rule.destinationWildcard;
 		this.destinationPortLower = rule.destinationPortLower;
 		this.destinationPortUpper = rule.destinationPortUpper;		
+		setFingerprint();
+	}
+	
+	private void setFingerprint() {
+		fingerprint = toString();
+		fingerprint_hash = fingerprint.hashCode();
 	}
 	
 	@Override
 	public boolean equals(Object o) {
 		if(o instanceof FilterRule) {
 			FilterRule another = (FilterRule) o;
-			if(this.toString().equals(another.toString()))
-				return true;
+			return fingerprint_hash == another.fingerprint_hash
+					&& fingerprint.equals(another.fingerprint);
 		}
 		return false;
 	}
 	
+	@Override
+	public int hashCode() {
+		return fingerprint_hash;
+	}
+	
 	public String toString() {
 		return accessList
 				+ " "
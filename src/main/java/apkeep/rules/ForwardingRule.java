@@ -1,8 +1,14 @@
 package apkeep.rules;
 
+import apkeep.utils.TrieTreeNode;
+import common.BDDACLWrapper;
+
 public class ForwardingRule extends Rule {
 	long dstIP;
 	int maskLen;
+	
+	// the trie node holding the rule, which summarizes the hit BDDs of its subtree
+	TrieTreeNode node;
 
 	public ForwardingRule(int match_bdd, long dstip, int len, String port, int priority) {
 		super(match_bdd, priority, port);
@@ -23,4 +29,18 @@ public class ForwardingRule extends Rule {
 	public int getMaskLen() {
 		return maskLen;
 	}
+
+	public void setNode(TrieTreeNode node) {
+		this.node = node;
+	}
+	
+	@Override
+	public void setHit_bdd(int hit_bdd) {
+		boolean had_hit = this.hit_bdd != BDDACLWrapper.BDDFalse;
+		super.setHit_bdd(hit_bdd);
+		boolean has_hit = hit_bdd != BDDACLWrapper.BDDFalse;
+		if (node != null && had_hit != has_hit) {
+			node.hitChanged(has_hit);
+		}
+	}
 }
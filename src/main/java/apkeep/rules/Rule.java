@@ -54,6 +54,11 @@ public abstract class Rule implements Comparable<Rule>{
 		return false;
 	}
 	
+	@Override
+	public int hashCode() {
+		return 31 * priority + port.hashCode();
+	}
+	
 	@Override
 	public int compareTo(Rule a) {
 		return a.priority - priority;
@@ -0,0 +1,143 @@
+package apkeep.utils;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import apkeep.rules.Rule;
+import common.BDDACLWrapper;
+
+/**
+ * Walks the rules affected by a change at one trie node without collecting them:
+ * the descendant rules first, then the rules of the node itself,
+ * then the ancestor rules from the nearest one up to the default rule.
+ * The descendants are walked in preorder, which is not a priority order;
+ * this is only correct because, as long as the priority of every rule is
+ * its prefix length, every descendant outranks the changed rule and falls
+ * in the shadow phase of identifyChanges, where the order does not matter.
+ * The rules of the node and the ancestors follow in decreasing priority.
+ * One iterator is reset for every change, so nothing is allocated per change.
+ * The subtree summaries of the trie let an insert skip the subtrees and rules
+ * that hit no packet, and a remove skip the subtrees that cannot take over
+ * the packets of the removed rule.
+ */
+public class AffectedRuleIterator implements Iterator<Rule> {
+	private final static int DESCENDANTS = 0;
+	private final static int SAME_NODE = 1;
+	private final static int ANCESTORS = 2;
+	private final static int DONE = 3;
+
+	private TrieTreeNode node;
+	private int phase;
+
+	// skip the rules whose hit BDD is empty
+	private boolean skip_empty_hits;
+	// skip the descendant subtrees without a rule of lower priority
+	private int below_priority;
+
+	// the pending subtrees of the descendant walk
+	private TrieTreeNode[] stack;
+	private int top;
+
+	private TrieTreeNode ancestor;
+	private TrieTreeNode rule_node;
+	private int rule_index;
+	private Rule next;
+
+	public AffectedRuleIterator() {
+		stack = new TrieTreeNode[2*TrieTreeNode.ipBits + 2];
+	}
+
+	public AffectedRuleIterator reset(TrieTreeNode node) {
+		return reset(node, false, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * the rules that hit no packet can neither shadow the inserted rule
+	 * nor give packets to it
+	 */
+	public AffectedRuleIterator resetForInsert(TrieTreeNode node) {
+		return reset(node, true, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * only the rules of lower priority can take over the packets of a removed rule
+	 */
+	public AffectedRuleIterator resetForRemove(TrieTreeNode node, int priority) {
+		return reset(node, false, priority);
+	}
+
+	private AffectedRuleIterator reset(TrieTreeNode node, boolean skip_empty_hits, int below_priority) {
+		this.node = node;
+		this.skip_empty_hits = skip_empty_hits;
+		this.below_priority = below_priority;
+		phase = DESCENDANTS;
+		top = 0;
+		ancestor = node;
+		rule_node = null;
+		rule_index = 0;
+
+		push(node.children[1]);
+		push(node.children[0]);
+		next = advance();
+		return this;
+	}
+
+	private void push(TrieTreeNode subtree) {
+		if (subtree != null) stack[top++] = subtree;
+	}
+
+	private Rule advance() {
+		while (true) {
+			if (rule_node != null && rule_index < rule_node.rule_num) {
+				Rule rule = rule_node.rules[rule_index++];
+				if (skip_empty_hits && rule.getHit_bdd() == BDDACLWrapper.BDDFalse) continue;
+				return rule;
+			}
+			rule_node = null;
+			rule_index = 0;
+
+			switch (phase) {
+			case DESCENDANTS:
+				if (top == 0) {
+					phase = SAME_NODE;
+					break;
+				}
+				TrieTreeNode subtree = stack[--top];
+				stack[top] = null;
+				if (skip_empty_hits && subtree.subtree_hit_rules == 0) break;
+				if (subtree.subtree_min_priority >= below_priority) break;
+				rule_node = subtree;
+				push(subtree.children[1]);
+				push(subtree.children[0]);
+				break;
+			case SAME_NODE:
+				rule_node = node;
+				phase = ANCESTORS;
+				break;
+			case ANCESTORS:
+				ancestor = ancestor.parent;
+				if (ancestor == null) {
+					phase = DONE;
+					break;
+				}
+				rule_node = ancestor;
+				break;
+			default:
+				return null;
+			}
+		}
+	}
+
+	@Override
+	public boolean hasNext() {
+		return next != null;
+	}
+
+	@Override
+	public Rule next() {
+		if (next == null) throw new NoSuchElementException();
+		Rule current = next;
+		next = advance();
+		return current;
+	}
+}
@@ -4,10 +4,10 @@ import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintStream;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.Collection;
 
 import apkeep.checker.Loop;
+import apkeep.checker.LoopRegistry;
 
 public class Evaluator {
 	
@@ -16,7 +16,7 @@ public class Evaluator {
 	int update_num;
 	int fast_update;
 	
-	Set<Loop> loops;
+	LoopRegistry loops;
 	
 	int ap_insert_num;
 	int ap_end_num;
@@ -29,6 +29,10 @@ public class Evaluator {
 	long ppm_time;
 	long veri_time;
 	long total_time;
+	long encode_time;
+	long idle_start;
+	long idle_time;
+	int idle_slots;
 	
 	// bytes
 	long initial_memory;
@@ -49,7 +53,7 @@ public class Evaluator {
 	public Evaluator(String net, String outputFile) {
 		name = net;
 		output_file = outputFile;
-		loops = new HashSet<>();
+		loops = new LoopRegistry();
 	}
 	
 	public boolean isInsertFinish() {
@@ -64,10 +68,14 @@ public class Evaluator {
 		ap_insert_num = num;
 	}
 	
-	public void addLoops(Set<Loop> loops) {
+	public void addLoops(Collection<Loop> loops) {
 		this.loops.addAll(loops);
 	}
 	
+	public LoopRegistry getLoops() {
+		return loops;
+	}
+	
 	public void startUpdate() {
 		update_num++;
 		start_time = System.nanoTime();
@@ -97,6 +105,26 @@ public class Evaluator {
 		}
 	}
 	
+	/**
+	 * @param time - nanoseconds spent encoding the rules of a snapshot, 
+	 * 		  not counted in the update time
+	 */
+	public void setEncodeTime(long time) {
+		encode_time = time;
+	}
+	
+	/*
+	 * the idle slots between updates, not counted in the update time
+	 */
+	public void startIdle() {
+		idle_start = System.nanoTime();
+	}
+	
+	public void endIdle() {
+		idle_time += System.nanoTime() - idle_start;
+		idle_slots++;
+	}
+	
 	public void startExp() {
 		rt = Runtime.getRuntime();
 		rt.gc();
@@ -113,6 +141,9 @@ public class Evaluator {
 		total_time = 0;
 		ppm_time = 0;
 		veri_time = 0;
+		encode_time = 0;
+		idle_time = 0;
+		idle_slots = 0;
 		
 		File file = new File(output_file);
 		if(!file.getParentFile().exists()) file.getParentFile().mkdirs();
@@ -160,10 +191,15 @@ public class Evaluator {
 		System.out.println("Total time: " + total_time/1000000 + "ms");
 		System.out.println("Update PPM time: " + ppm_time/1000000 + "ms");
 		System.out.println("Check property time: " + veri_time/1000000 + "ms");
+		if (encode_time > 0) {
+			System.out.println("Snapshot encoding time: " + encode_time/1000000 + "ms");
+		}
+		System.out.println("Idle slot time: " + idle_time/1000000 + "ms in " + idle_slots + " slots");
 		System.out.println("Number of APs after insert: " + ap_insert_num);
 		System.out.println("Number of APs after update: " + ap_end_num);
 		
-		System.out.println("Number of loops: " + loops.size());
+		System.out.println("Number of loops: " + loops.getFoundNum());
+		System.out.println("Number of loops left: " + loops.size());
 
 		System.out.println("Average update time: " + total_time/update_num/1000.0 + "us");
 		System.out.println(fast_update*100.0/update_num + "% < " + Parameters.FAST_UPDATE_THRESHOLD + "ms");	
@@ -171,7 +207,7 @@ public class Evaluator {
 	}
 	
 	public void printLoop(PrintStream printer) {
-		for(Loop loop : loops) {
+		for(Loop loop : loops.getFoundLoops()) {
 			printer.println(loop);
 		}
 	}
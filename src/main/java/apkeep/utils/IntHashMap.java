@@ -0,0 +1,273 @@
+package apkeep.utils;
+
+import java.util.AbstractCollection;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import apkeep.utils.IntHashSet.IntIterator;
+
+/**
+ * An open addressing hash map from primitive ints to objects,
+ * used for tables keyed by BDD node ids.
+ */
+public class IntHashMap<V> {
+
+	private final static int FREE = Integer.MIN_VALUE;
+	private final static int DEFAULT_CAPACITY = 8;
+	private final static float LOAD_FACTOR = 0.6f;
+
+	private int[] keys;
+	private V[] values;
+	private int size;
+	private int mask;
+	private int threshold;
+	// the value for the FREE key is kept out of the table
+	private boolean has_free_key;
+	private V free_value;
+
+	public IntHashMap() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	public IntHashMap(int expected) {
+		int capacity = DEFAULT_CAPACITY;
+		while (capacity * LOAD_FACTOR <= expected) {
+			capacity <<= 1;
+		}
+		allocate(capacity);
+	}
+
+	public IntHashMap(IntHashMap<V> another) {
+		keys = another.keys.clone();
+		values = another.values.clone();
+		size = another.size;
+		mask = another.mask;
+		threshold = another.threshold;
+		has_free_key = another.has_free_key;
+		free_value = another.free_value;
+	}
+
+	@SuppressWarnings("unchecked")
+	private void allocate(int capacity) {
+		keys = new int[capacity];
+		Arrays.fill(keys, FREE);
+		values = (V[]) new Object[capacity];
+		mask = capacity - 1;
+		threshold = (int) (capacity * LOAD_FACTOR);
+	}
+
+	private static int mix(int key) {
+		int h = key * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	private int indexOf(int key) {
+		int index = mix(key) & mask;
+		while (keys[index] != FREE) {
+			if (keys[index] == key) return index;
+			index = (index + 1) & mask;
+		}
+		return -1;
+	}
+
+	public boolean containsKey(int key) {
+		if (key == FREE) return has_free_key;
+		return indexOf(key) >= 0;
+	}
+
+	public V get(int key) {
+		if (key == FREE) return free_value;
+		int index = indexOf(key);
+		return index < 0 ? null : values[index];
+	}
+
+	public V put(int key, V value) {
+		if (key == FREE) {
+			V old = free_value;
+			if (!has_free_key) size++;
+			has_free_key = true;
+			free_value = value;
+			return old;
+		}
+		int index = mix(key) & mask;
+		while (keys[index] != FREE) {
+			if (keys[index] == key) {
+				V old = values[index];
+				values[index] = value;
+				return old;
+			}
+			index = (index + 1) & mask;
+		}
+		keys[index] = key;
+		values[index] = value;
+		if (++size > threshold) {
+			rehash(keys.length << 1);
+		}
+		return null;
+	}
+
+	public V putIfAbsent(int key, V value) {
+		V old = get(key);
+		if (old == null) {
+			put(key, value);
+		}
+		return old;
+	}
+
+	public V remove(int key) {
+		if (key == FREE) {
+			if (!has_free_key) return null;
+			V old = free_value;
+			has_free_key = false;
+			free_value = null;
+			size--;
+			return old;
+		}
+		int index = indexOf(key);
+		if (index < 0) return null;
+		V old = values[index];
+		shiftKeys(index);
+		size--;
+		return old;
+	}
+
+	/*
+	 * backward shift deletion, so that no tombstone is left in the table
+	 */
+	private void shiftKeys(int pos) {
+		int last;
+		while (true) {
+			last = pos;
+			pos = (pos + 1) & mask;
+			int key;
+			while (true) {
+				if ((key = keys[pos]) == FREE) {
+					keys[last] = FREE;
+					values[last] = null;
+					return;
+				}
+				int slot = mix(key) & mask;
+				if (last <= pos ? (last >= slot || slot > pos) : (last >= slot && slot > pos)) break;
+				pos = (pos + 1) & mask;
+			}
+			keys[last] = key;
+			values[last] = values[pos];
+		}
+	}
+
+	private void rehash(int capacity) {
+		int[] old_keys = keys;
+		V[] old_values = values;
+		allocate(capacity);
+		for (int i = 0; i < old_keys.length; i++) {
+			if (old_keys[i] == FREE) continue;
+			int index = mix(old_keys[i]) & mask;
+			while (keys[index] != FREE) {
+				index = (index + 1) & mask;
+			}
+			keys[index] = old_keys[i];
+			values[index] = old_values[i];
+		}
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public void clear() {
+		if (size == 0) return;
+		Arrays.fill(keys, FREE);
+		Arrays.fill(values, null);
+		has_free_key = false;
+		free_value = null;
+		size = 0;
+	}
+
+	/**
+	 * @return a snapshot of the keys, safe to use while modifying the map
+	 */
+	public int[] keyArray() {
+		int[] arr = new int[size];
+		int i = 0;
+		if (has_free_key) arr[i++] = FREE;
+		for (int key : keys) {
+			if (key != FREE) arr[i++] = key;
+		}
+		return arr;
+	}
+
+	public IntIterator keyIterator() {
+		return new IntIterator() {
+			int next = has_free_key ? -1 : advance(0);
+
+			@Override
+			public boolean hasNext() {
+				return next < keys.length;
+			}
+
+			@Override
+			public int nextInt() {
+				if (!hasNext()) throw new NoSuchElementException();
+				int current = next;
+				next = advance(next + 1);
+				return current < 0 ? FREE : keys[current];
+			}
+		};
+	}
+
+	private int advance(int from) {
+		while (from < keys.length && keys[from] == FREE) from++;
+		return from;
+	}
+
+	/**
+	 * @return a live view of the values, the map must not be structurally
+	 *         modified while iterating it
+	 */
+	public Collection<V> values() {
+		return new AbstractCollection<V>() {
+			@Override
+			public Iterator<V> iterator() {
+				return new Iterator<V>() {
+					int next = has_free_key ? -1 : advance(0);
+
+					@Override
+					public boolean hasNext() {
+						return next < keys.length;
+					}
+
+					@Override
+					public V next() {
+						if (!hasNext()) throw new NoSuchElementException();
+						int current = next;
+						next = advance(next + 1);
+						return current < 0 ? free_value : values[current];
+					}
+				};
+			}
+
+			@Override
+			public int size() {
+				return size;
+			}
+		};
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("{");
+		IntIterator it = keyIterator();
+		while (it.hasNext()) {
+			int key = it.nextInt();
+			sb.append(key).append('=').append(get(key));
+			if (it.hasNext()) sb.append(", ");
+		}
+		return sb.append('}').toString();
+	}
+}
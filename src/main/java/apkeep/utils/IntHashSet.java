@@ -0,0 +1,347 @@
+package apkeep.utils;
+
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * An open addressing hash set of primitive ints.
+ * BDD node ids are stored without boxing; the Set<Integer> view is kept
+ * only for the callers that still work on boxed collections.
+ */
+public class IntHashSet extends AbstractSet<Integer> {
+
+	private final static int FREE = Integer.MIN_VALUE;
+	private final static int DEFAULT_CAPACITY = 8;
+	private final static float LOAD_FACTOR = 0.6f;
+
+	private int[] keys;
+	private int size;
+	private int mask;
+	private int threshold;
+	// the FREE value itself is kept out of the table
+	private boolean has_free_key;
+
+	public IntHashSet() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	public IntHashSet(int expected) {
+		allocate(tableSizeFor(expected));
+	}
+
+	public IntHashSet(IntHashSet another) {
+		keys = another.keys.clone();
+		size = another.size;
+		mask = another.mask;
+		threshold = another.threshold;
+		has_free_key = another.has_free_key;
+	}
+
+	public IntHashSet(Collection<Integer> another) {
+		this(another.size());
+		for (int key : another) {
+			add(key);
+		}
+	}
+
+	public interface IntIterator {
+		boolean hasNext();
+		int nextInt();
+	}
+
+	private static int tableSizeFor(int expected) {
+		int capacity = DEFAULT_CAPACITY;
+		while (capacity * LOAD_FACTOR <= expected) {
+			capacity <<= 1;
+		}
+		return capacity;
+	}
+
+	private void allocate(int capacity) {
+		keys = new int[capacity];
+		Arrays.fill(keys, FREE);
+		mask = capacity - 1;
+		threshold = (int) (capacity * LOAD_FACTOR);
+	}
+
+	private static int mix(int key) {
+		int h = key * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	private int indexOf(int key) {
+		int index = mix(key) & mask;
+		while (keys[index] != FREE) {
+			if (keys[index] == key) return index;
+			index = (index + 1) & mask;
+		}
+		return -1;
+	}
+
+	public boolean contains(int key) {
+		if (key == FREE) return has_free_key;
+		return indexOf(key) >= 0;
+	}
+
+	public boolean add(int key) {
+		if (key == FREE) {
+			if (has_free_key) return false;
+			has_free_key = true;
+			size++;
+			return true;
+		}
+		int index = mix(key) & mask;
+		while (keys[index] != FREE) {
+			if (keys[index] == key) return false;
+			index = (index + 1) & mask;
+		}
+		keys[index] = key;
+		if (++size > threshold) {
+			rehash(keys.length << 1);
+		}
+		return true;
+	}
+
+	public boolean remove(int key) {
+		if (key == FREE) {
+			if (!has_free_key) return false;
+			has_free_key = false;
+			size--;
+			return true;
+		}
+		int index = indexOf(key);
+		if (index < 0) return false;
+		shiftKeys(index);
+		size--;
+		return true;
+	}
+
+	/*
+	 * backward shift deletion, so that no tombstone is left in the table
+	 */
+	private void shiftKeys(int pos) {
+		int last;
+		while (true) {
+			last = pos;
+			pos = (pos + 1) & mask;
+			int key;
+			while (true) {
+				if ((key = keys[pos]) == FREE) {
+					keys[last] = FREE;
+					return;
+				}
+				int slot = mix(key) & mask;
+				if (last <= pos ? (last >= slot || slot > pos) : (last >= slot && slot > pos)) break;
+				pos = (pos + 1) & mask;
+			}
+			keys[last] = key;
+		}
+	}
+
+	private void rehash(int capacity) {
+		int[] old_keys = keys;
+		allocate(capacity);
+		for (int key : old_keys) {
+			if (key == FREE) continue;
+			int index = mix(key) & mask;
+			while (keys[index] != FREE) {
+				index = (index + 1) & mask;
+			}
+			keys[index] = key;
+		}
+	}
+
+	public boolean addAll(IntHashSet another) {
+		boolean changed = false;
+		IntIterator it = another.intIterator();
+		while (it.hasNext()) {
+			changed |= add(it.nextInt());
+		}
+		return changed;
+	}
+
+	public boolean removeAll(IntHashSet another) {
+		boolean changed = false;
+		IntIterator it = another.intIterator();
+		while (it.hasNext()) {
+			changed |= remove(it.nextInt());
+		}
+		return changed;
+	}
+
+	public boolean containsAll(IntHashSet another) {
+		IntIterator it = another.intIterator();
+		while (it.hasNext()) {
+			if (!contains(it.nextInt())) return false;
+		}
+		return true;
+	}
+
+	@Override
+	public boolean retainAll(Collection<?> c) {
+		if (c instanceof IntHashSet) return retainAll((IntHashSet) c);
+		boolean changed = false;
+		for (int key : toIntArray()) {
+			if (!c.contains(key)) {
+				remove(key);
+				changed = true;
+			}
+		}
+		return changed;
+	}
+
+	public boolean retainAll(IntHashSet another) {
+		boolean changed = false;
+		for (int key : toIntArray()) {
+			if (!another.contains(key)) {
+				remove(key);
+				changed = true;
+			}
+		}
+		return changed;
+	}
+
+	/**
+	 * @return true if the two sets share at least one element
+	 */
+	public boolean intersects(IntHashSet another) {
+		IntHashSet small = size <= another.size ? this : another;
+		IntHashSet large = small == this ? another : this;
+		IntIterator it = small.intIterator();
+		while (it.hasNext()) {
+			if (large.contains(it.nextInt())) return true;
+		}
+		return false;
+	}
+
+	public int[] toIntArray() {
+		int[] arr = new int[size];
+		int i = 0;
+		if (has_free_key) arr[i++] = FREE;
+		for (int key : keys) {
+			if (key != FREE) arr[i++] = key;
+		}
+		return arr;
+	}
+
+	public int first() {
+		IntIterator it = intIterator();
+		if (!it.hasNext()) throw new NoSuchElementException();
+		return it.nextInt();
+	}
+
+	public IntIterator intIterator() {
+		return new KeyIterator();
+	}
+
+	@Override
+	public boolean contains(Object o) {
+		return o instanceof Integer && contains(((Integer) o).intValue());
+	}
+
+	@Override
+	public boolean add(Integer key) {
+		return add(key.intValue());
+	}
+
+	@Override
+	public boolean remove(Object o) {
+		return o instanceof Integer && remove(((Integer) o).intValue());
+	}
+
+	@Override
+	public boolean containsAll(Collection<?> c) {
+		if (c instanceof IntHashSet) return containsAll((IntHashSet) c);
+		return super.containsAll(c);
+	}
+
+	@Override
+	public boolean addAll(Collection<? extends Integer> c) {
+		if (c instanceof IntHashSet) return addAll((IntHashSet) c);
+		return super.addAll(c);
+	}
+
+	@Override
+	public boolean removeAll(Collection<?> c) {
+		if (c instanceof IntHashSet) return removeAll((IntHashSet) c);
+		boolean changed = false;
+		for (Object o : c) {
+			changed |= remove(o);
+		}
+		return changed;
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	@Override
+	public void clear() {
+		if (size == 0) return;
+		Arrays.fill(keys, FREE);
+		has_free_key = false;
+		size = 0;
+	}
+
+	@Override
+	public Iterator<Integer> iterator() {
+		return new KeyIterator();
+	}
+
+	@Override
+	public int hashCode() {
+		int h = 0;
+		IntIterator it = intIterator();
+		while (it.hasNext()) {
+			h += it.nextInt();
+		}
+		return h;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (o == this) return true;
+		if (o instanceof IntHashSet) {
+			IntHashSet another = (IntHashSet) o;
+			return size == another.size && containsAll(another);
+		}
+		return super.equals(o);
+	}
+
+	private class KeyIterator implements Iterator<Integer>, IntIterator {
+		// -1 stands for the FREE key kept out of the table
+		int next = has_free_key ? -1 : advance(0);
+
+		private int advance(int from) {
+			while (from < keys.length && keys[from] == FREE) from++;
+			return from;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return next < keys.length;
+		}
+
+		@Override
+		public int nextInt() {
+			if (!hasNext()) throw new NoSuchElementException();
+			int current = next;
+			next = advance(next + 1);
+			return current < 0 ? FREE : keys[current];
+		}
+
+		@Override
+		public Integer next() {
+			return nextInt();
+		}
+	}
+}
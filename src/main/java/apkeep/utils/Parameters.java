@@ -3,6 +3,10 @@ package apkeep.utils;
 public class Parameters {
 
 	public static boolean MergeAP = true;
+	public static boolean ColumnarPPM = false;
+	public static boolean AdaptiveMerge = false;
+	public static boolean SnapshotLoad = false;
+	public static boolean PerAPCheck = false;
 
 	public static int BDD_TABLE_SIZE = 100000000;
 //	public static int BDD_TABLE_SIZE = 100000000; // works well for airtel
@@ -10,10 +14,16 @@ public class Parameters {
 //	public static int BDD_TABLE_SIZE = 1000000; // works well for stanford-noacl, 142us
 //	public static int BDD_TABLE_SIZE = 1000; // works well for internet2, 22us
 	public static int GC_INTERVAL = 100000;
+	public static int FIELD_BDD_CACHE_SIZE = 4096; // ACL field BDDs kept for reuse
 	public static int TOTAL_AP_THRESHOLD = 500;
 	public static int LOW_MERGEABLE_AP_THRESHOLD = 10;
 	public static int HIGH_MERGEABLE_AP_THRESHOLD = 50;
 	public static double FAST_UPDATE_THRESHOLD = 0.25;
+	public static int IDLE_MERGE_BUDGET = 0; // us per idle slot, 0 merges on the update path
+	public static int IDLE_SLOT_INTERVAL = 1; // updates replayed between two idle slots
+	public static int MAX_PENDING_UPDATES = 4096; // splits and merges logged before the columnar PPM replays them all
+	public static int INDEXED_SCAN_THRESHOLD = 32; // APs of a port above which the AP index is looked up for an update
+	public static int AUDIT_SAMPLES = 0; // APs audited per idle slot, 0 disables the auditor
 
 	public static int PRINT_RESULT_INTERVAL = 100000;
 //	public static int PRINT_RESULT_INTERVAL = 10000;
@@ -0,0 +1,146 @@
+package apkeep.utils;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import apkeep.rules.Rule;
+
+/**
+ * A doubly linked list of rules in decreasing priority, indexed by the
+ * rules themselves, so that a rule is found and unlinked in constant time.
+ * Equal rules are chained in the order of the list, so the first of them
+ * in the list is the one found; a rule inserted before the rule last returned
+ * by an iterator precedes the equal rules, and an appended rule follows them.
+ */
+public class RuleList implements Iterable<Rule> {
+
+	private static class Node {
+		Rule rule;
+		Node prev;
+		Node next;
+		// the next node holding an equal rule
+		Node next_same;
+
+		Node(Rule rule) {
+			this.rule = rule;
+		}
+	}
+
+	private final Node head;
+	private final HashMap<Rule, Node> index;
+	private int size;
+
+	public RuleList() {
+		head = new Node(null);
+		head.prev = head;
+		head.next = head;
+		index = new HashMap<>();
+		size = 0;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public Rule getLast() {
+		if (size == 0) throw new NoSuchElementException();
+		return head.prev.rule;
+	}
+
+	/**
+	 * append the rule at the end of the list
+	 */
+	public void add(Rule rule) {
+		Node node = new Node(rule);
+		link(node, head);
+		Node same = index.putIfAbsent(rule, node);
+		if (same != null) {
+			while (same.next_same != null) {
+				same = same.next_same;
+			}
+			same.next_same = node;
+		}
+	}
+
+	private void link(Node node, Node successor) {
+		node.next = successor;
+		node.prev = successor.prev;
+		successor.prev.next = node;
+		successor.prev = node;
+		size++;
+	}
+
+	/**
+	 * @return the first rule of the list equal to the given one, null if not found
+	 */
+	public Rule find(Rule rule) {
+		Node node = index.get(rule);
+		return node == null ? null : node.rule;
+	}
+
+	/**
+	 * unlink this very rule from the list
+	 * @return false if the rule is not in the list
+	 */
+	public boolean remove(Rule rule) {
+		Node node = index.get(rule);
+		Node before = null;
+		while (node != null && node.rule != rule) {
+			before = node;
+			node = node.next_same;
+		}
+		if (node == null) return false;
+
+		if (before != null) {
+			before.next_same = node.next_same;
+		}
+		else if (node.next_same != null) {
+			index.put(rule, node.next_same);
+		}
+		else {
+			index.remove(rule);
+		}
+
+		node.prev.next = node.next;
+		node.next.prev = node.prev;
+		node.prev = null;
+		node.next = null;
+		node.next_same = null;
+		size--;
+		return true;
+	}
+
+	@Override
+	public RuleIterator iterator() {
+		return new RuleIterator();
+	}
+
+	public class RuleIterator implements Iterator<Rule> {
+		private Node next = head.next;
+		private Node last = null;
+
+		@Override
+		public boolean hasNext() {
+			return next != head;
+		}
+
+		@Override
+		public Rule next() {
+			if (next == head) throw new NoSuchElementException();
+			last = next;
+			next = next.next;
+			return last.rule;
+		}
+
+		/**
+		 * insert a rule right before the rule last returned
+		 */
+		public void insertBefore(Rule rule) {
+			if (last == null) throw new IllegalStateException();
+			Node node = new Node(rule);
+			link(node, last);
+			node.next_same = index.put(rule, node);
+		}
+	}
+}
@@ -1,48 +1,88 @@
 package apkeep.utils;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import apkeep.rules.ForwardingRule;
+import apkeep.rules.Rule;
 import common.BDDACLWrapper;
 
+/**
+ * A path-compressed binary trie of destination prefixes.
+ * Only the prefixes holding rules and the points where two of them branch
+ * are kept as nodes, and prefixes are compared as masked ints.
+ */
 public class TrieTree {
 	TrieTreeNode root;
-	
+
 	public TrieTree() {
-		root = new TrieTreeNode(0, -1);
-		TrieTreeNode child = new TrieTreeNode(1, 2);
-		child.addRule(new ForwardingRule(BDDACLWrapper.BDDTrue,BDDACLWrapper.BDDTrue,0,0,"default",-1));
-		
-		child.setParent(root);
-		root.setChild(2, child);
+		root = new TrieTreeNode(0, 0);
+		root.addRule(new ForwardingRule(BDDACLWrapper.BDDTrue,BDDACLWrapper.BDDTrue,0,0,"default",-1));
 	}
 
+	/**
+	 * @return the node of the prefix of the rule, created if not found
+	 */
 	public TrieTreeNode insert(ForwardingRule rule) {
-		long prefix = rule.getDstIP();
 		int prefixlen = rule.getMaskLen();
-		int[] prefixbin = PrefixLongToBin(prefix, prefixlen);
-		return root.insert(prefixbin);
+		int prefix = (int) rule.getDstIP() & TrieTreeNode.mask(prefixlen);
+
+		TrieTreeNode node = root;
+		while (node.prefixlen < prefixlen) {
+			int index = TrieTreeNode.bitAfter(prefix, node.prefixlen);
+			TrieTreeNode child = node.children[index];
+			if (child == null) {
+				TrieTreeNode leaf = new TrieTreeNode(prefix, prefixlen);
+				node.setChild(leaf);
+				return leaf;
+			}
+			if (child.covers(prefix, prefixlen)) {
+				node = child;
+				continue;
+			}
+
+			// the prefix leaves the path to the child before reaching it
+			int common = Math.min(Integer.numberOfLeadingZeros(child.prefix ^ prefix),
+					Math.min(child.prefixlen, prefixlen));
+			if (common == prefixlen) {
+				TrieTreeNode inner = new TrieTreeNode(prefix, prefixlen);
+				inner.setChild(child);
+				inner.summarize();
+				node.setChild(inner);
+				return inner;
+			}
+			TrieTreeNode branch = new TrieTreeNode(prefix & TrieTreeNode.mask(common), common);
+			TrieTreeNode leaf = new TrieTreeNode(prefix, prefixlen);
+			branch.setChild(child);
+			branch.setChild(leaf);
+			branch.summarize();
+			node.setChild(branch);
+			return leaf;
+		}
+		return node;
 	}
 
-	public TrieTreeNode search(ForwardingRule rule) throws Exception {
-		long prefix = rule.getDstIP();
-		int prefixlen = rule.getMaskLen();
-		int[] prefixbin = PrefixLongToBin(prefix, prefixlen);
-		return root.search(prefixbin);
+	/**
+	 * @return the rules of every prefix, the default rule included
+	 */
+	public List<Rule> getAllRules() {
+		List<Rule> all_rules = new ArrayList<>(root.getRules());
+		all_rules.addAll(root.getDescendantRules());
+		return all_rules;
 	}
-	
-	public int[] PrefixLongToBin(long prefix, int prefixlen) 
-	{
-    	int[] bin = new int[32];
-    	for (int i=0; i<32; i++) {
-    		if (i >= prefixlen) {
-    			bin[i] = 2;
-    		}
-    		else if((prefix & (1 << (32-i-1))) == 0) {
-    			bin[i] = 0;
-    		}
-    		else {
-    			bin[i] = 1;
-    		}
-    	}    
-    	return bin;
+
+	/**
+	 * @return the node of the prefix of the rule, null if not found
+	 */
+	public TrieTreeNode search(ForwardingRule rule) {
+		int prefixlen = rule.getMaskLen();
+		int prefix = (int) rule.getDstIP() & TrieTreeNode.mask(prefixlen);
+
+		TrieTreeNode node = root;
+		while (node != null && node.prefixlen < prefixlen) {
+			node = node.children[TrieTreeNode.bitAfter(prefix, node.prefixlen)];
+			if (node != null && !node.covers(prefix, prefixlen)) return null;
+		}
+		return node;
 	}
 }
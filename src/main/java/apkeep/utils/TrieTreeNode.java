@@ -1,200 +1,229 @@
 package apkeep.utils;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
-import apkeep.exception.LimitExceededException;
+
+import apkeep.rules.ForwardingRule;
 import apkeep.rules.Rule;
+import common.BDDACLWrapper;
 
+/**
+ * A node of the path-compressed prefix trie.
+ * A node either holds the rules of one prefix, or only branches into
+ * two subtrees whose prefixes differ right after its own prefix.
+ */
 public class TrieTreeNode {
-	
+
 	final static int ipBits = 32;
-	
-	private List<Rule> matched_rules;
-	
-	int node_level;
-	int node_value;
-	
-	// children [0]: bit 0; children[1]: bit 1; children[2]: bit *
+
+	// the rules of the prefix in decreasing priority
+	Rule[] rules;
+	int rule_num;
+
+	// the prefix is masked to its length
+	final int prefix;
+	final int prefixlen;
+
+	// children[0]: the next bit is 0; children[1]: the next bit is 1
 	TrieTreeNode parent;
-	TrieTreeNode[] children;
-    
-    public TrieTreeNode(int level, int value)
+	final TrieTreeNode[] children;
+
+	/*
+	 * summaries of the subtree rooted at this node, the node included,
+	 * used to skip whole subtrees when identifying changes
+	 */
+	int subtree_hit_rules; // the rules whose hit BDD is not empty
+	int subtree_min_priority; // Integer.MAX_VALUE without rules
+
+	TrieTreeNode(int prefix, int prefixlen)
 	{
-		children = new TrieTreeNode[3];
-		matched_rules = new ArrayList<>();
-		node_level = level;
-		node_value = value;
-	}
-    
-	public TrieTreeNode insert(int[] prefixbin) {
-		int index = prefixbin[node_level];	
-		
-		if (children[index] == null) {
-			children[index] = new TrieTreeNode(node_level+1, index);
-		}
-		children[index].parent = this;
-		
-		// stop recursion when reaching wildcard or the bottom level
-		if (index == 2 || node_level == 31) {
-			return children[index];
-		}
-		
-		return children[index].insert(prefixbin);
-	}
-	
-	public TrieTreeNode search(int[] prefixbin) throws Exception {
-		// should not reach here
-		if (node_level > 31) {
-			throw new LimitExceededException(node_level, 31);
-		}
-		
-		int index = prefixbin[node_level];
-		if (children[index] !=  null) {
-			// stop recursion when reaching wildcard or the bottom level
-			if (index == 2 || node_level == 31)
-				return children[index];
-			return children[index].search(prefixbin);
-		}
-		
-		return null;
+		this.prefix = prefix;
+		this.prefixlen = prefixlen;
+		children = new TrieTreeNode[2];
+		rules = null;
+		rule_num = 0;
+		subtree_hit_rules = 0;
+		subtree_min_priority = Integer.MAX_VALUE;
 	}
-	
-    private List<TrieTreeNode> getDescendant() {
-    	ArrayList<TrieTreeNode> descendants = new ArrayList<TrieTreeNode>();
-		
-		if (node_level == 32 && node_value != 2) {
-			return descendants;
-		}
-		
-		if (parent == null) {
-			throw new NullPointerException();
-		}
-		
-		if (parent.children[0] != null) {
-			parent.children[0].getDescendantRecur(descendants);
-		}
-		
-		if (parent.children[1] != null) {
-			parent.children[1].getDescendantRecur(descendants);
-		}
-		
-		return descendants;
+
+	static int mask(int prefixlen) {
+		return prefixlen == 0 ? 0 : -1 << (ipBits - prefixlen);
 	}
-	
-	private void getDescendantRecur(ArrayList<TrieTreeNode> descendants) {
-		if (node_level == 32) {
-			descendants.add(this);
-			return;
+
+	/**
+	 * @return the bit of the prefix right after the first prefixlen bits
+	 */
+	static int bitAfter(int prefix, int prefixlen) {
+		return (prefix >>> (ipBits - 1 - prefixlen)) & 1;
+	}
+
+	/**
+	 * @return whether the prefix of this node covers the given prefix
+	 */
+	boolean covers(int another_prefix, int another_len) {
+		return prefixlen <= another_len
+				&& ((another_prefix ^ prefix) & mask(prefixlen)) == 0;
+	}
+
+	void setChild(TrieTreeNode child) {
+		children[bitAfter(child.prefix, prefixlen)] = child;
+		child.parent = this;
+	}
+
+	/**
+	 * recompute the summaries of a node created above existing subtrees
+	 */
+	void summarize() {
+		subtree_hit_rules = 0;
+		for (int i = 0; i < rule_num; i++) {
+			if (rules[i].getHit_bdd() != BDDACLWrapper.BDDFalse) subtree_hit_rules++;
 		}
-		
-		if (children[2] != null) {
-			descendants.add(children[2]);
-			//return;
+		for (TrieTreeNode child : children) {
+			if (child != null) subtree_hit_rules += child.subtree_hit_rules;
 		}
-		
-		if (children[0] != null) {
-			children[0].getDescendantRecur(descendants);
+		subtree_min_priority = minPriority();
+	}
+
+	private int minPriority() {
+		int min = rule_num == 0 ? Integer.MAX_VALUE : rules[rule_num-1].getPriority();
+		for (TrieTreeNode child : children) {
+			if (child != null) min = Math.min(min, child.subtree_min_priority);
 		}
-		
-		if (children[1] != null) {
-			children[1].getDescendantRecur(descendants);
+		return min;
+	}
+
+	private void refreshMinPriority() {
+		for (TrieTreeNode node = this; node != null; node = node.parent) {
+			int min = node.minPriority();
+			if (min == node.subtree_min_priority) return;
+			node.subtree_min_priority = min;
 		}
-		
-		return;
 	}
-	
-	private List<TrieTreeNode> getAncestor() {
-		ArrayList<TrieTreeNode> ancestors = new ArrayList<TrieTreeNode>();
-		
-		// should not reach here
-		if (parent == null) {
-			throw new NullPointerException();
+
+	/**
+	 * called when the hit BDD of a rule of this node becomes empty or not empty
+	 */
+	public void hitChanged(boolean has_hit) {
+		for (TrieTreeNode node = this; node != null; node = node.parent) {
+			node.subtree_hit_rules += has_hit ? 1 : -1;
 		}
-		
-		// search for all ancestors recursively
-		getAncestorRecur(ancestors);
-		if(ancestors.contains(this)) ancestors.remove(this);
-		
-		return ancestors;
 	}
 
-	private void getAncestorRecur(ArrayList<TrieTreeNode> ancestors) {
-		if (parent != null) {
-			if (parent.children[2] != null)
-				ancestors.add(parent.children[2]);
-			parent.getAncestorRecur(ancestors);
+	private int childNum() {
+		return (children[0] == null ? 0 : 1) + (children[1] == null ? 0 : 1);
+	}
+
+	/**
+	 * remove the node once it holds no rule,
+	 * and the branching nodes that become useless
+	 */
+	public void delete() {
+		TrieTreeNode node = this;
+		// the root holds the default rule and is never removed
+		while (node.parent != null && node.rule_num == 0) {
+			TrieTreeNode p = node.parent;
+			int index = bitAfter(node.prefix, p.prefixlen);
+
+			if (node.childNum() == 2) return;
+			if (node.childNum() == 1) {
+				// splice the only child into the parent
+				p.setChild(node.children[0] != null ? node.children[0] : node.children[1]);
+				node.parent = null;
+				return;
+			}
+			p.children[index] = null;
+			node.parent = null;
+			node = p;
 		}
 	}
 
 	public List<Rule> getDescendantRules() {
-		List<Rule> rules = new ArrayList<>();
-		List<TrieTreeNode> descendant = getDescendant();
-		if(descendant == null) return rules;
-		for(TrieTreeNode node : descendant) {
-			rules.addAll(node.getRules());
+		List<Rule> descendant_rules = new ArrayList<>();
+		for (TrieTreeNode child : children) {
+			if (child != null) child.getSubtreeRules(descendant_rules);
 		}
-		return rules;
+		return descendant_rules;
 	}
-	
-	public List<Rule> getAncestorRules() {
-		List<Rule> rules = new ArrayList<>();
-		List<TrieTreeNode> ancestor = getAncestor();
-		if(ancestor == null) return rules;
-		for(TrieTreeNode node : ancestor) {
-			rules.addAll(node.getRules());
+
+	private void getSubtreeRules(List<Rule> subtree_rules) {
+		subtree_rules.addAll(getRules());
+		for (TrieTreeNode child : children) {
+			if (child != null) child.getSubtreeRules(subtree_rules);
 		}
-		return rules;
 	}
 
-	public void setParent(TrieTreeNode parent) {
-		this.parent = parent;
+	public List<Rule> getAncestorRules() {
+		List<Rule> ancestor_rules = new ArrayList<>();
+		for (TrieTreeNode node = parent; node != null; node = node.parent) {
+			ancestor_rules.addAll(node.getRules());
+		}
+		return ancestor_rules;
 	}
-    public void setChild(int bit, TrieTreeNode child) {
-    	children[bit] = child;
-    }
 
 	public void addRule(Rule rule) {
-		if(!matched_rules.contains(rule)) matched_rules.add(rule);
+		if(hasRule(rule)) return;
+		if (rules == null) {
+			rules = new Rule[1];
+		}
+		else if (rule_num == rules.length) {
+			rules = Arrays.copyOf(rules, rule_num * 2);
+		}
+		int index = rule_num;
+		while (index > 0 && rules[index-1].getPriority() < rule.getPriority()) {
+			rules[index] = rules[index-1];
+			index--;
+		}
+		rules[index] = rule;
+		rule_num++;
+
+		if (rule instanceof ForwardingRule) {
+			((ForwardingRule) rule).setNode(this);
+		}
+		if (rule.getHit_bdd() != BDDACLWrapper.BDDFalse) {
+			hitChanged(true);
+		}
+		refreshMinPriority();
 	}
-	
+
 	public void removeRule(Rule rule) {
-		matched_rules.remove(rule);
-	}
-	
-	public void delete() {
-		if (parent != null){
-			parent.children[node_value] = null;
-			if (!parent.hasChild()) {
-				parent.delete();
+		for (int i = 0; i < rule_num; i++) {
+			if (rules[i].equals(rule)) {
+				Rule removed = rules[i];
+				System.arraycopy(rules, i+1, rules, i, rule_num-i-1);
+				rules[--rule_num] = null;
+				if (rule_num == 0) rules = null;
+
+				if (removed instanceof ForwardingRule) {
+					((ForwardingRule) removed).setNode(null);
+				}
+				if (removed.getHit_bdd() != BDDACLWrapper.BDDFalse) {
+					hitChanged(false);
+				}
+				refreshMinPriority();
+				return;
 			}
 		}
 	}
-	
+
 	public boolean noRules() {
-		return matched_rules.isEmpty();
+		return rule_num == 0;
 	}
-	
-	private boolean hasChild() {
-		for (int i=0; i<3; i++) {
-			if (children[i] != null) {
-				return true;
-			}
-		}
-		return false;
-	}
-	
+
 	public Rule findRule(Rule rule) {
-		for(Rule r : matched_rules) {
-			if(r.equals(rule)) return r;
+		for (int i = 0; i < rule_num; i++) {
+			if (rules[i].equals(rule)) return rules[i];
 		}
 		return null;
 	}
-	
+
 	public boolean hasRule(Rule rule) {
-		return matched_rules.contains(rule);
+		return findRule(rule) != null;
 	}
-	
+
 	public List<Rule> getRules(){
-		return matched_rules;
+		if (rule_num == 0) return Collections.emptyList();
+		return Arrays.asList(rules).subList(0, rule_num);
 	}
 }
@@ -100,6 +100,46 @@ public class BDDACLWrapper implements Serializable{
       Permutation push_perm;
       Permutation pop_perm;
 
+      /**
+       * the field BDDs of ACL rules, shared by the rules using the same 
+       * range or address. the cache holds one reference to each BDD,
+       * which is dropped when the least recently used entry is evicted.
+       */
+      private final static int PROTOCOL_FIELD = 0;
+      private final static int SRC_PORT_FIELD = 1;
+      private final static int DST_PORT_FIELD = 2;
+      private final static int SRC_IP_FIELD = 3;
+      private final static int DST_IP_FIELD = 4;
+      LinkedHashMap<FieldKey, Integer> field_bdd_cache;
+
+      private static class FieldKey implements Serializable {
+            private static final long serialVersionUID = 1L;
+            final int field;
+            final long value;
+            final long mask;
+
+            FieldKey(int field, long value, long mask)
+            {
+                  this.field = field;
+                  this.value = value;
+                  this.mask = mask;
+            }
+
+            @Override
+            public boolean equals(Object o)
+            {
+                  if(!(o instanceof FieldKey)) return false;
+                  FieldKey another = (FieldKey) o;
+                  return field == another.field && value == another.value && mask == another.mask;
+            }
+
+            @Override
+            public int hashCode()
+            {
+                  return (int) ((value * 31 + mask) * 31 + field);
+            }
+      }
+
       /**
        * for readability. In bdd:
        * 0 is the false node
@@ -117,6 +157,19 @@ public class BDDACLWrapper implements Serializable{
             //aclBDD = new BDD(100000000, 1000000);
     	    aclBDD = new BDD(Parameters.BDD_TABLE_SIZE, 1000000);
             //aclBDD = new BDD(10000000, 1000000);
+
+            final int cache_size = Parameters.FIELD_BDD_CACHE_SIZE;
+            field_bdd_cache = new LinkedHashMap<FieldKey, Integer>(16, 0.75f, true) {
+                  private static final long serialVersionUID = 1L;
+
+                  @Override
+                  protected boolean removeEldestEntry(Map.Entry<FieldKey, Integer> eldest)
+                  {
+                        if(size() <= cache_size) return false;
+                        aclBDD.deref(eldest.getValue());
+                        return true;
+                  }
+            };
             
             protocol = new int[protocolBits];
             srcPort = new int[portBits];
@@ -736,6 +789,37 @@ public class BDDACLWrapper implements Serializable{
             return entrybdd;
       }
 
+      /**
+       * 
+       * @param pkt - a packet set, not false
+       * @return the longest destination IP prefix that covers pkt, 
+       * encoded as (prefixlen << 32) | prefix
+       */
+      public long getDstIPCoveringPrefix(int pkt)
+      {
+            long prefix = 0;
+            int prefixlen = 0;
+            // dstIP[ipBits - 1] is the most significant bit
+            for(int i = ipBits - 1; i >= 0; i --)
+            {
+                  int one = aclBDD.ref(aclBDD.and(pkt, dstIP[i]));
+                  aclBDD.deref(one);
+                  if(one == BDDFalse)
+                  {
+                        // the bit is 0 for all packets
+                  }else if(one == pkt)
+                  {
+                        // the bit is 1 for all packets
+                        prefix |= 1L << i;
+                  }else
+                  {
+                        break;
+                  }
+                  prefixlen ++;
+            }
+            return ((long) prefixlen << 32) | prefix;
+      }
+
       public int encodeMPLSLabel(int label_int)
       {
             int [] label_bin = Utility.CalBinRep(label_int, mplsBits);
@@ -1212,7 +1296,7 @@ public class BDDACLWrapper implements Serializable{
             }else{
                   Range r = ACLRule.convertProtocolToRange
                               (aclr.protocolLower, aclr.protocolUpper);
-                  protocolNode = ConvertProtocol(r);
+                  protocolNode = CachedRange(PROTOCOL_FIELD, r, protocol, protocolBits);
             }
 
             /**
@@ -1226,7 +1310,7 @@ public class BDDACLWrapper implements Serializable{
             }else{
                   Range r = ACLRule.convertPortToRange(aclr.sourcePortLower, 
                               aclr.sourcePortUpper);
-                  srcPortNode = ConvertSrcPort(r);
+                  srcPortNode = CachedRange(SRC_PORT_FIELD, r, srcPort, portBits);
             }
 
             /**
@@ -1240,18 +1324,18 @@ public class BDDACLWrapper implements Serializable{
             }else{
                   Range r = ACLRule.convertPortToRange(aclr.destinationPortLower, 
                               aclr.destinationPortUpper);
-                  dstPortNode = ConvertDstPort(r);
+                  dstPortNode = CachedRange(DST_PORT_FIELD, r, dstPort, portBits);
             }
 
             /**
              * src IP
              */
-            int srcIPNode = ConvertIPAddress(aclr.source, aclr.sourceWildcard, srcIP);
+            int srcIPNode = CachedIPAddress(SRC_IP_FIELD, aclr.source, aclr.sourceWildcard, srcIP);
 
             /**
              * dst IP
              */
-            int dstIPNode = ConvertIPAddress(aclr.destination, 
+            int dstIPNode = CachedIPAddress(DST_IP_FIELD, aclr.destination, 
                         aclr.destinationWildcard, dstIP);
 
             //put them together
@@ -1264,6 +1348,43 @@ public class BDDACLWrapper implements Serializable{
             return tempnode;
       }
 
+      /**
+       * @return the referenced bdd node of the range of a field, 
+       * encoded only if it is not cached
+       */
+      private int CachedRange(int field, Range r, int[] vars, int bits)
+      {
+            FieldKey key = new FieldKey(field, r.lower, r.upper);
+            Integer node = field_bdd_cache.get(key);
+            if(node == null)
+            {
+                  node = ConvertRange(r, vars, bits);
+                  field_bdd_cache.put(key, node);
+            }
+            return aclBDD.ref(node);
+      }
+
+      /**
+       * @return the referenced bdd node of an ip address and wildcard of a field, 
+       * encoded only if it is not cached
+       */
+      private int CachedIPAddress(int field, String IP, String Mask, int[] vars)
+      {
+            if(IP == null || IP.equalsIgnoreCase("any"))
+            {
+                  return BDDTrue;
+            }
+            long mask = Mask == null ? -1 : Utility.IPStringToLong(Mask);
+            FieldKey key = new FieldKey(field, Utility.IPStringToLong(IP), mask);
+            Integer node = field_bdd_cache.get(key);
+            if(node == null)
+            {
+                  node = ConvertIPAddress(IP, Mask, vars);
+                  field_bdd_cache.put(key, node);
+            }
+            return aclBDD.ref(node);
+      }
+
       /**
        * @param bddnodes - an array of bdd nodes
        * @return - the bdd node which is the AND of all input nodes
@@ -1272,37 +1393,7 @@ public class BDDACLWrapper implements Serializable{
        */
       public int AndInBatch(int [] bddnodes)
       {
-            int tempnode = BDDTrue;
-            for(int i = 0; i < bddnodes.length; i ++)
-            {
-                  if(i == 0)
-                  {
-                        tempnode = bddnodes[i];
-                        aclBDD.ref(tempnode);
-                  }else
-                  {
-                        if(bddnodes[i] == BDDTrue)
-                        {
-                              // short cut, TRUE does not affect anything
-                              continue;
-                        }
-                        if(bddnodes[i] == BDDFalse)
-                        {
-                              // short cut, once FALSE, the result is false
-                              // the current tempnode is useless now
-                              aclBDD.deref(tempnode);
-                              tempnode = BDDFalse; 
-                              break;
-                        }
-                        int tempnode2 = aclBDD.and(tempnode, bddnodes[i]);
-                        aclBDD.ref(tempnode2);
-                        // do not need current tempnode 
-                        aclBDD.deref(tempnode);
-                        //refresh
-                        tempnode = tempnode2;
-                  }
-            }
-            return tempnode;
+            return ReduceInBatch(bddnodes, true);
       }
 
       /**
@@ -1324,37 +1415,108 @@ public class BDDACLWrapper implements Serializable{
        */
       public int OrInBatch(int [] bddnodes)
       {
-            int tempnode = BDDFalse;
-            for(int i = 0; i < bddnodes.length; i ++)
+            return ReduceInBatch(bddnodes, false);
+      }
+
+      /**
+       * combine the nodes pairwise in a balanced tree instead of folding them 
+       * left to right, so that the intermediate results stay small.
+       * the operands are ordered by node count, so that small nodes are 
+       * combined with each other first.
+       * @param bddnodes - an array of bdd nodes
+       * @param conjunction - AND if true, OR otherwise
+       * @return - the referenced result, the input nodes are not de-referenced
+       */
+      private int ReduceInBatch(int [] bddnodes, boolean conjunction)
+      {
+            // TRUE for AND, FALSE for OR does not affect anything
+            int neutral = conjunction ? BDDTrue : BDDFalse;
+            // FALSE for AND, TRUE for OR decides the result
+            int absorbing = conjunction ? BDDFalse : BDDTrue;
+
+            int n = 0;
+            int[] level = new int[bddnodes.length];
+            for(int node : bddnodes)
             {
-                  if(i == 0)
+                  if(node == absorbing)
                   {
-                        tempnode = bddnodes[i];
-                        aclBDD.ref(tempnode);
-                  }else
+                        return absorbing;
+                  }
+                  if(node != neutral)
                   {
-                        if(bddnodes[i] == BDDFalse)
+                        level[n++] = node;
+                  }
+            }
+            if(n == 0)
+            {
+                  return neutral;
+            }
+            if(n == 1)
+            {
+                  return aclBDD.ref(level[0]);
+            }
+
+            if(n > 2)
+            {
+                  long[] sized = new long[n];
+                  for(int i = 0; i < n; i ++)
+                  {
+                        sized[i] = ((long) aclBDD.nodeCount(level[i]) << 32) | (level[i] & 0xFFFFFFFFL);
+                  }
+                  Arrays.sort(sized);
+                  for(int i = 0; i < n; i ++)
+                  {
+                        level[i] = (int) sized[i];
+                  }
+            }
+
+            // the nodes of the first level belong to the caller
+            boolean temporary = false;
+            while(n > 1)
+            {
+                  int m = 0;
+                  for(int i = 0; i + 1 < n; i += 2)
+                  {
+                        int tempnode = conjunction ? aclBDD.and(level[i], level[i+1]) 
+                                    : aclBDD.or(level[i], level[i+1]);
+                        aclBDD.ref(tempnode);
+                        if(temporary)
                         {
-                              // short cut, FALSE does not affect anything
-                              continue;
+                              aclBDD.deref(level[i]);
+                              aclBDD.deref(level[i+1]);
                         }
-                        if(bddnodes[i] == BDDTrue)
+                        if(tempnode == absorbing)
                         {
-                              // short cut, once TRUE, the result is true
-                              // the current tempnode is useless now
-                              aclBDD.deref(tempnode);
-                              tempnode = BDDTrue; 
-                              break;
+                              // short cut, the rest of the nodes do not matter
+                              if(temporary)
+                              {
+                                    for(int j = i + 2; j < n; j ++)
+                                    {
+                                          aclBDD.deref(level[j]);
+                                    }
+                              }
+                              for(int j = 0; j < m; j ++)
+                              {
+                                    aclBDD.deref(level[j]);
+                              }
+                              return tempnode;
                         }
-                        int tempnode2 = aclBDD.or(tempnode, bddnodes[i]);
-                        aclBDD.ref(tempnode2);
-                        // do not need current tempnode 
-                        aclBDD.deref(tempnode);
-                        //refresh
-                        tempnode = tempnode2;
+                        level[m++] = tempnode;
+                  }
+                  if(n % 2 == 1)
+                  {
+                        // the odd node is carried to the next level
+                        int carried = level[n-1];
+                        if(!temporary)
+                        {
+                              aclBDD.ref(carried);
+                        }
+                        level[m++] = carried;
                   }
+                  n = m;
+                  temporary = true;
             }
-            return tempnode;
+            return level[0];
       }
 
 
@@ -0,0 +1,164 @@
+package apkeep.checker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import apkeep.core.Network;
+import apkeep.utils.Evaluator;
+import apkeep.utils.Parameters;
+import common.PositionTuple;
+
+/*
+ * the loops found by the strongly connected components of the reached
+ * ports, and the witness loop search inside them, on small networks
+ */
+public class CheckerTest {
+	private static final long NET10 = 10L << 24;
+	private static final long NET11 = 11L << 24;
+	private static final long NET12 = 12L << 24;
+
+	private Evaluator eva;
+
+	@Before
+	public void setUp() throws IOException {
+		Parameters.BDD_TABLE_SIZE = 10000;
+		File output = File.createTempFile("checker", ".txt");
+		output.deleteOnExit();
+		eva = new Evaluator("test", output.getPath());
+	}
+
+	private static String fwd(String op, String device, long prefix, String port) {
+		return op + " fwd " + device + " " + prefix + " 8 " + port + " 8";
+	}
+
+	private Network network(String... links) {
+		Network net = new Network("test");
+		net.initializeNetwork(new ArrayList<>(Arrays.asList(links)), null, null, null, null);
+		return net;
+	}
+
+	private static Set<String> devices(Loop loop) {
+		Set<String> devices = new HashSet<>();
+		for (PositionTuple pt : loop.path) {
+			devices.add(pt.getDeviceName());
+		}
+		return devices;
+	}
+
+	private static Set<String> set(String... names) {
+		return new HashSet<>(Arrays.asList(names));
+	}
+
+	@Test
+	public void ringIsFoundOnce() throws Exception {
+		Network net = network("r1 p2 r2 p1", "r2 p2 r3 p1", "r3 p2 r1 p1", "r1 p3 r4 p1");
+		List<String> rules = new ArrayList<>();
+		rules.add(fwd("+", "r1", NET10, "p2"));
+		rules.add(fwd("+", "r2", NET10, "p2"));
+		rules.add(fwd("+", "r3", NET10, "p2"));
+		rules.add(fwd("+", "r1", NET11, "p3"));
+		net.run(eva, rules);
+
+		LoopRegistry loops = eva.getLoops();
+		assertEquals(1, loops.getFoundNum());
+		Loop loop = loops.getFoundLoops().iterator().next();
+		assertEquals(set("r1", "r2", "r3"), devices(loop));
+		// three hops, each through an egress and an ingress port, and the closing port
+		assertEquals(7, loop.path.size());
+		assertEquals(loop.path.get(0), loop.path.get(6));
+	}
+
+	@Test
+	public void chainWithoutCycleHasNoLoop() throws Exception {
+		Network net = network("r1 p2 r2 p1", "r2 p2 r3 p1", "r3 p2 r1 p1");
+		List<String> rules = new ArrayList<>();
+		rules.add(fwd("+", "r1", NET10, "p2"));
+		rules.add(fwd("+", "r2", NET10, "p2"));
+		// the link back to r1 is there, but nothing is forwarded over it
+		rules.add(fwd("+", "r3", NET10, "p3"));
+		net.run(eva, rules);
+
+		assertEquals(0, eva.getLoops().getFoundNum());
+	}
+
+	@Test
+	public void cyclesOfOneComponentAreFoundApart() throws Exception {
+		Network net = network("r1 a r2 a", "r2 b r1 b", "r1 c r3 c", "r3 d r1 d");
+		List<String> rules = new ArrayList<>();
+		rules.add(fwd("+", "r1", NET10, "a"));
+		rules.add(fwd("+", "r2", NET10, "b"));
+		rules.add(fwd("+", "r1", NET11, "c"));
+		rules.add(fwd("+", "r3", NET11, "d"));
+		net.run(eva, rules);
+
+		LoopRegistry loops = eva.getLoops();
+		assertEquals(2, loops.getFoundNum());
+		Set<Set<String>> found = new HashSet<>();
+		for (Loop loop : loops.getFoundLoops()) {
+			found.add(devices(loop));
+		}
+		assertEquals(new HashSet<>(Arrays.asList(set("r1", "r2"), set("r1", "r3"))), found);
+	}
+
+	@Test
+	public void disjointComponentsAreAllSearched() throws Exception {
+		Network net = network("r1 p2 r2 p1", "r2 p2 r1 p1", "r5 p2 r6 p1", "r6 p2 r5 p1");
+		List<String> rules = new ArrayList<>();
+		rules.add(fwd("+", "r1", NET10, "p2"));
+		rules.add(fwd("+", "r2", NET10, "p2"));
+		rules.add(fwd("+", "r5", NET12, "p2"));
+		rules.add(fwd("+", "r6", NET12, "p2"));
+		net.run(eva, rules);
+
+		assertEquals(2, eva.getLoops().getFoundNum());
+		assertEquals(2, eva.getLoops().size());
+	}
+
+	@Test
+	public void brokenLoopIsRetired() throws Exception {
+		Network net = network("r1 p2 r2 p1", "r2 p2 r1 p1");
+		List<String> rules = new ArrayList<>();
+		rules.add(fwd("+", "r1", NET10, "p2"));
+		rules.add(fwd("+", "r2", NET10, "p2"));
+		rules.add(fwd("-", "r2", NET10, "p2"));
+		net.run(eva, rules);
+
+		LoopRegistry loops = eva.getLoops();
+		assertEquals(1, loops.getFoundNum());
+		assertEquals(0, loops.size());
+		assertTrue(loops.getLoops("r1").isEmpty());
+	}
+
+	@Test
+	public void loopFoundAgainIsCountedOnce() throws Exception {
+		Network net = network("r1 p2 r2 p1", "r2 p2 r1 p1");
+		List<String> rules = new ArrayList<>();
+		for (int i = 0; i < 3; i++) {
+			rules.add(fwd("+", "r1", NET10, "p2"));
+			rules.add(fwd("+", "r2", NET10, "p2"));
+			rules.add(fwd("-", "r2", NET10, "p2"));
+			rules.add(fwd("-", "r1", NET10, "p2"));
+		}
+		rules.add(fwd("+", "r1", NET10, "p2"));
+		rules.add(fwd("+", "r2", NET10, "p2"));
+		net.run(eva, rules);
+
+		LoopRegistry loops = eva.getLoops();
+		assertEquals(1, loops.getFoundNum());
+		assertEquals(1, loops.getFoundLoops().size());
+		assertEquals(1, loops.size());
+		assertSame(loops.getFoundLoops().iterator().next(), loops.getLoops("r1").get(0));
+	}
+}
@@ -0,0 +1,98 @@
+package apkeep.checker;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.Test;
+
+import common.PositionTuple;
+
+public class LoopTest {
+
+	/*
+	 * a loop over the ports, closed by repeating the first port
+	 */
+	private static Loop loop(int... cycle) {
+		int[] ports = Arrays.copyOf(cycle, cycle.length + 1);
+		ports[cycle.length] = cycle[0];
+		List<PositionTuple> path = new ArrayList<>();
+		for (int port : ports) {
+			path.add(new PositionTuple("d" + port, "p" + port));
+		}
+		return new Loop(null, new HashSet<>(Arrays.asList(port(cycle[0]))), path, ports);
+	}
+
+	private static Integer port(int port) {
+		return port * 10;
+	}
+
+	@Test
+	public void minimalRotationStartsAtTheSmallestRotation() {
+		assertArrayEquals(new int[] {1, 2, 3}, Loop.minimalRotation(new int[] {2, 3, 1, 2}, 3));
+		assertArrayEquals(new int[] {1, 5, 1, 7}, Loop.minimalRotation(new int[] {1, 7, 1, 5, 1}, 4));
+		assertArrayEquals(new int[] {4}, Loop.minimalRotation(new int[] {4, 4}, 1));
+		// repeated ports compare the rest of the rotation
+		assertArrayEquals(new int[] {1, 1, 2, 1, 3}, Loop.minimalRotation(new int[] {1, 3, 1, 1, 2, 1}, 5));
+	}
+
+	@Test
+	public void everyRotationIsTheSameLoop() {
+		int[] cycle = {8, 3, 5, 3, 9, 1};
+		Loop first = loop(cycle);
+		for (int start = 1; start < cycle.length; start++) {
+			int[] rotated = new int[cycle.length];
+			for (int i = 0; i < cycle.length; i++) {
+				rotated[i] = cycle[(start + i) % cycle.length];
+			}
+			Loop another = loop(rotated);
+			assertEquals(first, another);
+			assertEquals(first.hashCode(), another.hashCode());
+		}
+		// the same ports in the reverse direction are another loop
+		assertNotEquals(first, loop(1, 9, 3, 5, 3, 8));
+		assertNotEquals(first, loop(8, 3, 5, 3, 9));
+	}
+
+	@Test
+	public void loopFoundAgainAddsItsAPs() {
+		LoopRegistry loops = new LoopRegistry();
+		Loop first = loop(1, 2, 3);
+		loops.add(first);
+		loops.add(loop(2, 3, 1));
+		loops.add(loop(4, 5));
+
+		assertEquals(2, loops.size());
+		assertEquals(2, loops.getFoundNum());
+		assertSame(first, loops.getFoundLoops().iterator().next());
+		assertEquals(new HashSet<>(Arrays.asList(port(1), port(2))), first.getAPs());
+		assertEquals(1, loops.getLoops("d2").size());
+
+		loops.remove(first);
+		assertEquals(1, loops.size());
+		assertTrue(loops.getLoops("d2").isEmpty());
+		// the removed loop is still among the loops found
+		assertEquals(2, loops.getFoundNum());
+
+		// and is registered again, once, when found again
+		Loop again = loop(3, 1, 2);
+		loops.add(again);
+		assertEquals(2, loops.size());
+		assertEquals(2, loops.getFoundNum());
+		assertSame(first, loops.getLoops("d2").get(0));
+		assertEquals(again.getAPs(), first.getAPs());
+	}
+
+	@Test
+	public void loopWithoutRegistryIsAlwaysStale() {
+		Loop loop = loop(1, 2);
+		assertTrue(loop.hasStaleAPs());
+	}
+}
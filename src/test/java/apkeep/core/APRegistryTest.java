@@ -0,0 +1,119 @@
+package apkeep.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import apkeep.utils.IntHashSet;
+
+public class APRegistryTest {
+	private APRegistry registry;
+
+	@Before
+	public void setUp() {
+		registry = new APRegistry();
+	}
+
+	@Test
+	public void idsAreDenseAndGrowPastTheInitialTable() {
+		for (int ap = 0; ap < 200; ap++) {
+			assertEquals(ap, registry.register(1000 + ap));
+		}
+		for (int id = 0; id < 200; id++) {
+			assertEquals(1000 + id, registry.apOf(id));
+			assertEquals(id, registry.idOf(1000 + id));
+		}
+		assertEquals(200, registry.getLiveIds().cardinality());
+		assertEquals(-1, registry.idOf(7));
+	}
+
+	@Test
+	public void releasedIdsAreReused() {
+		for (int ap = 10; ap < 20; ap++) {
+			registry.register(ap);
+		}
+		Set<Integer> released = new HashSet<>();
+		for (int ap = 12; ap < 18; ap += 2) {
+			released.add(registry.release(ap));
+			assertEquals(-1, registry.idOf(ap));
+		}
+		assertEquals(7, registry.getLiveIds().cardinality());
+
+		Set<Integer> reused = new HashSet<>();
+		for (int ap = 30; ap < 33; ap++) {
+			reused.add(registry.register(ap));
+		}
+		assertEquals(released, reused);
+		assertEquals(10, registry.register(40));
+		assertEquals(11, registry.getLiveIds().cardinality());
+	}
+
+	@Test
+	public void renameHandsTheIdOver() {
+		int id = registry.register(5);
+		registry.register(6);
+		assertEquals(id, registry.rename(5, 8));
+		assertEquals(-1, registry.idOf(5));
+		assertEquals(id, registry.idOf(8));
+		assertEquals(8, registry.apOf(id));
+		assertEquals(2, registry.getLiveIds().cardinality());
+	}
+
+	@Test
+	public void setsDropDeadAPs() {
+		registry.register(5);
+		registry.register(6);
+		registry.register(7);
+		registry.release(6);
+
+		IntHashSet aps = new IntHashSet();
+		aps.add(5);
+		aps.add(6);
+		aps.add(9);
+		BitSet bits = registry.toBits(aps);
+		assertEquals(1, bits.cardinality());
+		assertTrue(bits.get(registry.idOf(5)));
+		assertEquals(bits, registry.toBits(new HashSet<>(aps)));
+
+		bits.set(registry.idOf(7));
+		IntHashSet back = registry.toSet(bits);
+		assertEquals(2, back.size());
+		assertTrue(back.contains(5));
+		assertTrue(back.contains(7));
+		assertFalse(back.contains(6));
+
+		BitSet live = registry.getLiveIds();
+		live.clear();
+		assertEquals(2, registry.getLiveIds().cardinality());
+	}
+
+	@Test
+	public void stampsGoStaleWhenTheIdChangesHands() {
+		registry.register(5);
+		registry.register(6);
+		long stamp5 = registry.stampOf(5);
+		long stamp6 = registry.stampOf(6);
+		assertTrue(registry.isCurrent(stamp5));
+		assertEquals(-1, registry.stampOf(7));
+		assertFalse(registry.isCurrent(-1));
+
+		registry.rename(5, 7);
+		assertFalse(registry.isCurrent(stamp5));
+		assertTrue(registry.isCurrent(registry.stampOf(7)));
+
+		// the BDD node of a removed AP is reused for an unrelated AP
+		registry.release(6);
+		assertFalse(registry.isCurrent(stamp6));
+		registry.register(6);
+		assertEquals(stamp6 >>> 32, registry.stampOf(6) >>> 32);
+		assertFalse(registry.isCurrent(stamp6));
+		assertTrue(registry.isCurrent(registry.stampOf(6)));
+	}
+}
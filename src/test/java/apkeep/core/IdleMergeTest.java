@@ -0,0 +1,66 @@
+package apkeep.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import apkeep.utils.Evaluator;
+import apkeep.utils.Parameters;
+
+/*
+ * the parameters are read when the classes are loaded,
+ * so they are set before the first network is created
+ */
+public class IdleMergeTest {
+	private static final int SLOT_INTERVAL = 8;
+
+	static {
+		Parameters.BDD_TABLE_SIZE = 10000;
+		Parameters.IDLE_MERGE_BUDGET = 1000000;
+		Parameters.IDLE_SLOT_INTERVAL = SLOT_INTERVAL;
+		Parameters.TOTAL_AP_THRESHOLD = 0;
+		Parameters.LOW_MERGEABLE_AP_THRESHOLD = 2;
+		Parameters.HIGH_MERGEABLE_AP_THRESHOLD = 1000;
+	}
+
+	private Network net;
+	private Evaluator eva;
+
+	@Before
+	public void setUp() throws IOException {
+		net = new Network("test");
+		net.initializeNetwork(new ArrayList<>(Arrays.asList("r1 p1 r2 p1")), null, null, null, null);
+		File output = File.createTempFile("idle", ".txt");
+		output.deleteOnExit();
+		eva = new Evaluator("test", output.getPath());
+		eva.startExp();
+	}
+
+	/*
+	 * every rule splits an AP forwarded to the same port as the APs of
+	 * the rules before it, so without merging one AP is added per rule
+	 */
+	@Test
+	public void idleSlotsMergeDuringTheReplay() throws Exception {
+		int most_aps = 0;
+		for (int i = 0; i < 64; i++) {
+			long prefix = (10L << 24) | (i << 16);
+			net.updateRule(eva, "+ fwd r1 " + prefix + " 16 p1 16");
+			most_aps = Math.max(most_aps, net.getAPNum());
+			if (i % SLOT_INTERVAL == SLOT_INTERVAL - 1) {
+				// the slot after this update merged the APs of the port
+				assertEquals(2, net.getAPNum());
+			}
+		}
+		// the merges waited for the slots instead of following every update
+		assertTrue(most_aps > 2);
+		assertTrue(most_aps <= SLOT_INTERVAL + 2);
+	}
+}
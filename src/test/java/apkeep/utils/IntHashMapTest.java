@@ -0,0 +1,85 @@
+package apkeep.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+import apkeep.utils.IntHashSet.IntIterator;
+
+public class IntHashMapTest {
+	private static final int FREE = Integer.MIN_VALUE;
+
+	private static void assertSameEntries(Map<Integer, String> expected, IntHashMap<String> map) {
+		assertEquals(expected.size(), map.size());
+		for (Map.Entry<Integer, String> entry : expected.entrySet()) {
+			assertEquals(entry.getValue(), map.get(entry.getKey()));
+		}
+		Set<Integer> iterated = new HashSet<>();
+		IntIterator it = map.keyIterator();
+		while (it.hasNext()) {
+			assertTrue(iterated.add(it.nextInt()));
+		}
+		assertEquals(expected.keySet(), iterated);
+		assertEquals(expected.size(), map.values().size());
+	}
+
+	/*
+	 * the values must move together with their keys when a removal
+	 * shifts a probe run back
+	 */
+	@Test
+	public void removeShiftsValuesWithKeys() {
+		Random random = new Random(3);
+		IntHashMap<String> map = new IntHashMap<>();
+		Map<Integer, String> expected = new HashMap<>();
+		for (int round = 0; round < 20000; round++) {
+			int key = random.nextInt(512);
+			if (random.nextInt(3) == 0) {
+				assertEquals(expected.remove(key), map.remove(key));
+			}
+			else {
+				String value = "v" + round;
+				assertEquals(expected.put(key, value), map.put(key, value));
+			}
+			assertEquals(expected.size(), map.size());
+		}
+		assertSameEntries(expected, map);
+	}
+
+	@Test
+	public void freeKeyHasItsOwnValue() {
+		IntHashMap<String> map = new IntHashMap<>();
+		assertFalse(map.containsKey(FREE));
+		assertNull(map.get(FREE));
+		assertNull(map.put(FREE, "a"));
+		assertEquals("a", map.put(FREE, "b"));
+		map.put(0, "zero");
+		assertEquals(2, map.size());
+		assertEquals("b", map.putIfAbsent(FREE, "c"));
+
+		Map<Integer, String> expected = new HashMap<>();
+		expected.put(FREE, "b");
+		expected.put(0, "zero");
+		assertSameEntries(expected, map);
+
+		IntHashMap<String> copy = new IntHashMap<>(map);
+		assertEquals("b", map.remove(FREE));
+		assertNull(map.remove(FREE));
+		assertFalse(map.containsKey(FREE));
+		assertEquals(1, map.size());
+		assertEquals("b", copy.get(FREE));
+
+		map.clear();
+		assertTrue(map.isEmpty());
+		assertNull(map.get(0));
+	}
+}
@@ -0,0 +1,130 @@
+package apkeep.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+import apkeep.utils.IntHashSet.IntIterator;
+
+public class IntHashSetTest {
+	private static final int FREE = Integer.MIN_VALUE;
+
+	private static void assertSameKeys(Set<Integer> expected, IntHashSet set) {
+		assertEquals(expected.size(), set.size());
+		for (int key : expected) {
+			assertTrue("missing " + key, set.contains(key));
+		}
+		Set<Integer> iterated = new HashSet<>();
+		IntIterator it = set.intIterator();
+		while (it.hasNext()) {
+			assertTrue(iterated.add(it.nextInt()));
+		}
+		assertEquals(expected, iterated);
+	}
+
+	/*
+	 * removing from the middle of a probe run must shift the later keys
+	 * back, or they can no longer be found
+	 */
+	@Test
+	public void removeKeepsProbeRunsReachable() {
+		Random random = new Random(1);
+		IntHashSet set = new IntHashSet();
+		Set<Integer> expected = new HashSet<>();
+		for (int round = 0; round < 20000; round++) {
+			int key = random.nextInt(512);
+			if (random.nextInt(3) == 0) {
+				assertEquals(expected.remove(key), set.remove(key));
+			}
+			else {
+				assertEquals(expected.add(key), set.add(key));
+			}
+			assertEquals(expected.size(), set.size());
+		}
+		assertSameKeys(expected, set);
+	}
+
+	@Test
+	public void removeInEveryOrderOfAFullTable() {
+		Random random = new Random(2);
+		for (int trial = 0; trial < 50; trial++) {
+			IntHashSet set = new IntHashSet(16);
+			List<Integer> keys = new ArrayList<>();
+			for (int i = 0; i < 16; i++) {
+				int key = random.nextInt();
+				if (key == FREE || !set.add(key)) continue;
+				keys.add(key);
+			}
+			Collections.shuffle(keys, random);
+			Set<Integer> expected = new HashSet<>(keys);
+			for (int key : keys) {
+				assertTrue(set.remove(key));
+				expected.remove(key);
+				assertSameKeys(expected, set);
+			}
+			assertTrue(set.isEmpty());
+		}
+	}
+
+	@Test
+	public void freeKeyIsAnOrdinaryElement() {
+		IntHashSet set = new IntHashSet();
+		assertFalse(set.contains(FREE));
+		assertTrue(set.add(FREE));
+		assertFalse(set.add(FREE));
+		set.add(0);
+		set.add(-1);
+		assertTrue(set.contains(FREE));
+		assertEquals(3, set.size());
+
+		Set<Integer> expected = new HashSet<>();
+		expected.add(FREE);
+		expected.add(0);
+		expected.add(-1);
+		assertSameKeys(expected, set);
+		assertEquals(3, set.toIntArray().length);
+
+		IntHashSet copy = new IntHashSet(set);
+		assertTrue(copy.contains(FREE));
+		assertEquals(set, copy);
+
+		assertTrue(set.remove(FREE));
+		assertFalse(set.remove(FREE));
+		assertFalse(set.contains(FREE));
+		assertEquals(2, set.size());
+		assertTrue(copy.contains(FREE));
+	}
+
+	@Test
+	public void setOperationsMatchJavaSets() {
+		IntHashSet a = new IntHashSet();
+		IntHashSet b = new IntHashSet();
+		for (int i = 0; i < 100; i++) {
+			a.add(i);
+			if (i % 3 == 0) b.add(i);
+		}
+		b.add(FREE);
+		assertFalse(a.containsAll(b));
+		assertTrue(a.intersects(b));
+
+		a.retainAll(b);
+		assertEquals(34, a.size());
+		a.removeAll(b);
+		assertTrue(a.isEmpty());
+		assertFalse(a.intersects(b));
+
+		a.addAll(b);
+		assertEquals(b, a);
+		assertEquals(new HashSet<>(b), a);
+		assertEquals(new HashSet<>(b).hashCode(), a.hashCode());
+	}
+}
@@ -0,0 +1,143 @@
+package apkeep.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import apkeep.rules.Rule;
+
+public class RuleListTest {
+
+	// rules are equal by priority and port, the match tells equal rules apart
+	private static class TestRule extends Rule {
+		TestRule(int match, int priority, String port) {
+			super(match, priority, port);
+		}
+
+		@Override
+		public String toString() {
+			return priority + port + "#" + match_bdd;
+		}
+	}
+
+	private static void assertSameOrder(List<Rule> expected, RuleList list) {
+		assertEquals(expected.size(), list.size());
+		Iterator<Rule> it = list.iterator();
+		for (Rule rule : expected) {
+			assertSame(rule, it.next());
+		}
+		assertFalse(it.hasNext());
+		for (Rule rule : expected) {
+			assertSame(firstEqual(expected, rule), list.find(rule));
+		}
+	}
+
+	private static Rule firstEqual(List<Rule> rules, Rule rule) {
+		for (Rule r : rules) {
+			if (r.equals(rule)) return r;
+		}
+		return null;
+	}
+
+	private static void removeSame(List<Rule> rules, Rule rule) {
+		for (int i = 0; i < rules.size(); i++) {
+			if (rules.get(i) == rule) {
+				rules.remove(i);
+				return;
+			}
+		}
+	}
+
+	@Test
+	public void equalRulesAreFoundInListOrder() {
+		RuleList list = new RuleList();
+		Rule a1 = new TestRule(1, 5, "p");
+		Rule a2 = new TestRule(2, 5, "p");
+		Rule a3 = new TestRule(3, 5, "p");
+		list.add(a1);
+		list.add(a2);
+		list.add(a3);
+		assertSame(a1, list.find(new TestRule(9, 5, "p")));
+
+		assertFalse(list.remove(new TestRule(9, 5, "p")));
+		assertTrue(list.remove(a2));
+		assertSame(a1, list.find(a3));
+		assertTrue(list.remove(a1));
+		assertSame(a3, list.find(a1));
+		assertTrue(list.remove(a3));
+		assertNull(list.find(a3));
+		assertEquals(0, list.size());
+	}
+
+	@Test
+	public void insertBeforePrecedesEqualRules() {
+		RuleList list = new RuleList();
+		Rule high = new TestRule(1, 10, "p");
+		Rule a1 = new TestRule(2, 5, "p");
+		Rule low = new TestRule(3, 1, "p");
+		list.add(high);
+		list.add(a1);
+		list.add(low);
+
+		RuleList.RuleIterator it = list.iterator();
+		it.next();
+		assertSame(a1, it.next());
+		Rule a0 = new TestRule(4, 5, "p");
+		it.insertBefore(a0);
+		assertSame(low, it.next());
+
+		List<Rule> expected = new ArrayList<>();
+		expected.add(high);
+		expected.add(a0);
+		expected.add(a1);
+		expected.add(low);
+		assertSameOrder(expected, list);
+		assertSame(low, list.getLast());
+
+		list.remove(a0);
+		expected.remove(a0);
+		assertSameOrder(expected, list);
+	}
+
+	@Test
+	public void randomUpdatesKeepChainsInListOrder() {
+		Random random = new Random(5);
+		RuleList list = new RuleList();
+		List<Rule> expected = new ArrayList<>();
+		for (int round = 0; round < 5000; round++) {
+			Rule rule = new TestRule(round, random.nextInt(4), "p" + random.nextInt(2));
+			int op = random.nextInt(3);
+			if (op == 0 && !expected.isEmpty()) {
+				Rule removed = expected.get(random.nextInt(expected.size()));
+				assertTrue(list.remove(removed));
+				removeSame(expected, removed);
+			}
+			else if (op == 1 && !expected.isEmpty()) {
+				// rules are inserted before the equal rules, as the elements do
+				int position = random.nextInt(expected.size());
+				Rule first = firstEqual(expected, rule);
+				if (first != null && expected.indexOf(first) < position) continue;
+				RuleList.RuleIterator it = list.iterator();
+				for (int i = 0; i <= position; i++) {
+					it.next();
+				}
+				it.insertBefore(rule);
+				expected.add(position, rule);
+			}
+			else {
+				list.add(rule);
+				expected.add(rule);
+			}
+			assertSameOrder(expected, list);
+		}
+	}
+}
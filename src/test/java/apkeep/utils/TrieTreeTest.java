@@ -0,0 +1,168 @@
+package apkeep.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import apkeep.rules.ForwardingRule;
+import apkeep.rules.Rule;
+import common.BDDACLWrapper;
+
+public class TrieTreeTest {
+	private TrieTree trie;
+	private List<ForwardingRule> rules;
+
+	@Before
+	public void setUp() {
+		trie = new TrieTree();
+		rules = new ArrayList<>();
+	}
+
+	private static long ip(int a, int b, int c, int d) {
+		return ((long) a << 24) | (b << 16) | (c << 8) | d;
+	}
+
+	private ForwardingRule insert(long dstip, int len, String port, int priority, boolean hit) {
+		ForwardingRule rule = new ForwardingRule(BDDACLWrapper.BDDTrue,
+				hit ? BDDACLWrapper.BDDTrue : BDDACLWrapper.BDDFalse, dstip, len, port, priority);
+		trie.insert(rule).addRule(rule);
+		rules.add(rule);
+		return rule;
+	}
+
+	private void remove(ForwardingRule rule) {
+		TrieTreeNode node = trie.search(rule);
+		node.removeRule(rule);
+		if (node.noRules()) node.delete();
+		// rules are equal by priority and port, whatever their prefixes
+		rules.removeIf(r -> r == rule);
+	}
+
+	/*
+	 * check the structure and the summaries of the subtree against
+	 * a recount, and return the number of rules in it
+	 */
+	private static int verify(TrieTreeNode node) {
+		int rule_num = node.rule_num;
+		int hit_rules = 0;
+		int min_priority = Integer.MAX_VALUE;
+		for (Rule rule : node.getRules()) {
+			if (rule.getHit_bdd() != BDDACLWrapper.BDDFalse) hit_rules++;
+			min_priority = Math.min(min_priority, rule.getPriority());
+		}
+		int child_num = 0;
+		for (int i = 0; i < 2; i++) {
+			TrieTreeNode child = node.children[i];
+			if (child == null) continue;
+			child_num++;
+			assertSame(node, child.parent);
+			assertTrue(child.prefixlen > node.prefixlen);
+			assertTrue(node.covers(child.prefix, child.prefixlen));
+			assertEquals(i, TrieTreeNode.bitAfter(child.prefix, node.prefixlen));
+			rule_num += verify(child);
+			hit_rules += child.subtree_hit_rules;
+			min_priority = Math.min(min_priority, child.subtree_min_priority);
+		}
+		if (node.parent != null) {
+			assertTrue("useless node /" + node.prefixlen, node.rule_num > 0 || child_num == 2);
+		}
+		assertEquals(hit_rules, node.subtree_hit_rules);
+		assertEquals(min_priority, node.subtree_min_priority);
+		return rule_num;
+	}
+
+	private void verify() {
+		assertEquals(rules.size() + 1, verify(trie.root));
+		List<Rule> all_rules = trie.getAllRules();
+		assertEquals(rules.size() + 1, all_rules.size());
+		assertTrue(new HashSet<>(all_rules).containsAll(rules));
+	}
+
+	@Test
+	public void insertBranchesWhereThePrefixesDiffer() {
+		ForwardingRule r10 = insert(ip(10, 0, 0, 0), 8, "p1", 8, true);
+		ForwardingRule r11 = insert(ip(11, 0, 0, 0), 8, "p2", 8, false);
+		verify();
+
+		TrieTreeNode branch = trie.search(r10).parent;
+		assertEquals(7, branch.prefixlen);
+		assertTrue(branch.noRules());
+		assertSame(branch, trie.search(r11).parent);
+		assertSame(trie.root, branch.parent);
+		assertEquals(1, branch.subtree_hit_rules);
+		assertEquals(2, trie.root.subtree_hit_rules);
+
+		// a prefix between the branch and a leaf becomes an inner node
+		ForwardingRule r10_7 = insert(ip(10, 0, 0, 0), 7, "p3", 7, false);
+		assertSame(branch, trie.search(r10_7));
+		ForwardingRule r10_4 = insert(ip(10, 0, 0, 0), 4, "p4", 4, true);
+		assertSame(trie.search(r10_4), branch.parent);
+		assertEquals(4, trie.search(r10_4).subtree_min_priority);
+		verify();
+
+		assertNull(trie.search(new ForwardingRule(BDDACLWrapper.BDDTrue, ip(12, 0, 0, 0), 8, "p1", 8)));
+		assertNull(trie.search(new ForwardingRule(BDDACLWrapper.BDDTrue, ip(10, 0, 0, 0), 16, "p1", 16)));
+	}
+
+	@Test
+	public void deleteSplicesUselessBranches() {
+		ForwardingRule r10 = insert(ip(10, 0, 0, 0), 8, "p1", 8, true);
+		ForwardingRule r11 = insert(ip(11, 0, 0, 0), 8, "p2", 8, true);
+		remove(r11);
+		verify();
+		assertSame(trie.root, trie.search(r10).parent);
+		remove(r10);
+		verify();
+		assertNull(trie.root.children[0]);
+		assertNull(trie.root.children[1]);
+	}
+
+	@Test
+	public void hitChangesReachTheRoot() {
+		ForwardingRule r = insert(ip(10, 1, 0, 0), 16, "p1", 16, false);
+		insert(ip(10, 2, 0, 0), 16, "p1", 16, false);
+		assertEquals(1, trie.root.subtree_hit_rules);
+		r.setHit_bdd(BDDACLWrapper.BDDTrue);
+		assertEquals(2, trie.root.subtree_hit_rules);
+		verify();
+		r.setHit_bdd(BDDACLWrapper.BDDFalse);
+		assertEquals(1, trie.root.subtree_hit_rules);
+		verify();
+	}
+
+	@Test
+	public void summariesFollowRandomUpdates() {
+		Random random = new Random(4);
+		for (int round = 0; round < 3000; round++) {
+			int op = random.nextInt(4);
+			if (op == 0 && !rules.isEmpty()) {
+				remove(rules.get(random.nextInt(rules.size())));
+			}
+			else if (op == 1 && !rules.isEmpty()) {
+				ForwardingRule rule = rules.get(random.nextInt(rules.size()));
+				rule.setHit_bdd(random.nextBoolean() ? BDDACLWrapper.BDDTrue : BDDACLWrapper.BDDFalse);
+			}
+			else {
+				int len = random.nextInt(33);
+				long dstip = (random.nextInt(8) << 29 | random.nextInt(4) << 20 | random.nextInt(4)) & 0xFFFFFFFFL;
+				dstip &= 0xFFFFFFFFL & TrieTreeNode.mask(len);
+				String port = "p" + random.nextInt(4);
+				int priority = len * 10 + random.nextInt(3);
+				ForwardingRule rule = new ForwardingRule(BDDACLWrapper.BDDTrue, dstip, len, port, priority);
+				TrieTreeNode node = trie.search(rule);
+				if (node != null && node.hasRule(rule)) continue;
+				insert(dstip, len, port, priority, random.nextBoolean());
+			}
+			verify();
+		}
+	}
+}